@@ -0,0 +1,81 @@
+package com.yrrlsv.fin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static com.yrrlsv.fin.Field.account;
+import static com.yrrlsv.fin.Field.amount;
+import static com.yrrlsv.fin.Field.balance;
+import static com.yrrlsv.fin.Field.currency;
+import static com.yrrlsv.fin.Field.date;
+import static com.yrrlsv.fin.Field.none;
+import static com.yrrlsv.fin.Field.shop;
+
+// synthetic banks shaped like OTP card messages, with a date, amount and currency, and balance to parse
+final class BenchmarkData {
+
+    static final String backup = BenchmarkData.class.getResource("/banksOnly-20160111231728.xml").getPath();
+
+    private static final List<Template> otp = Arrays.asList(
+            template("(.+)\nSplata za tovar/poslugu.\nKartka (.+). Suma:\n(.+). Misce:\n(.+). \nZalyshok: (.+)",
+                    Placeholder.of(date), Placeholder.of(account), Placeholder.of(amount, currency),
+                    Placeholder.of(shop), Placeholder.of(balance, none)),
+            template("OTPdirekt:(.+): Splata za tovar/poslugu. Kartka (.+). Suma: (.+). Misce: (.+). Zalyshok: (.+).",
+                    Placeholder.of(date), Placeholder.of(account), Placeholder.of(amount, currency),
+                    Placeholder.of(shop), Placeholder.of(balance, none)),
+            template("OTPdirekt:(.+): Popovnennya rahunku: (.+). Suma: (.+) Zalyshok: (.+) Platnyk: (.+)",
+                    Placeholder.of(date), Placeholder.of(account), Placeholder.of(amount, currency),
+                    Placeholder.of(balance), Placeholder.of(shop)));
+
+    private BenchmarkData() {
+    }
+
+    private static Template template(String regex, Placeholder... placeholders) {
+        return new Template(EventType.charge, Pattern.compile(regex), Arrays.asList(placeholders),
+                null, null, null, null, null);
+    }
+
+    static List<Template> templates(int count) {
+        List<Template> templates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            templates.add(template("Bank" + i + ": (.+): Splata za tovar/poslugu. Kartka (.+). Suma: (.+). " +
+                            "Misce: (.+). Zalyshok: (.+)",
+                    Placeholder.of(date), Placeholder.of(account), Placeholder.of(amount, currency),
+                    Placeholder.of(shop), Placeholder.of(balance, none)));
+        }
+        return templates;
+    }
+
+    // real OTP templates at the end of the synthetic ones, the worst place for insertion order
+    static List<Template> withOtp(int count) {
+        List<Template> templates = templates(Math.max(count - otp.size(), 0));
+        templates.addAll(otp);
+        return templates;
+    }
+
+    static List<Message> hits(int templates, int count) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message("Bank" + (i * 7919 % templates) + ": " + (10 + i % 18) + ".01.16 12:30: " +
+                    "Splata za tovar/poslugu. Kartka *" + (1000 + i % 9000) + ". Suma: " + (i % 900 + 100) + ",50UAH. " +
+                    "Misce: KAFE-PIZZERIYA MARIOS. Zalyshok: " + i + ".73 UAH", 1452816000000L));
+        }
+        return messages;
+    }
+
+    static List<Message> misses(int count) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message("Vash kod dostupu " + (100000 + i) + ". Splata za tovar/poslugu. " +
+                    "Kartka *" + (1000 + i % 9000) + ". Diysnyi do 12:30"));
+        }
+        return messages;
+    }
+
+    static DataProvider limit(DataProvider provider, int count) {
+        int[] left = {count};
+        return () -> left[0]-- > 0 ? provider.nextMessage() : null;
+    }
+}
@@ -0,0 +1,86 @@
+package com.yrrlsv.fin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoreServiceBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int templateCount;
+
+    @Param({"100", "1000"})
+    private int messageCount;
+
+    @Param({"regex", "automaton"})
+    private CoreService.Engine engine;
+
+    private CoreService service;
+    private List<Message> hits;
+    private List<Message> misses;
+    private List<Template.Content> contents;
+
+    @Setup
+    public void setUp() {
+        service = new CoreService(new LinkedHashSet<>(BenchmarkData.templates(templateCount))).engine(engine);
+        hits = BenchmarkData.hits(templateCount, messageCount);
+        misses = BenchmarkData.misses(messageCount);
+
+        contents = new ArrayList<>(messageCount);
+        for (Message message : BenchmarkData.hits(templateCount, messageCount)) {
+            String text = message.text() + " Suma: 112.87 UAH";
+            int amount = text.lastIndexOf("112.87");
+            int card = text.indexOf('*');
+            Template.Content content = new Template.Content().message(new Message(text)).setType(EventType.charge)
+                    .setMoneyPattern(Pattern.compile("\\d+\\.\\d{2}"))
+                    .setLocators(FieldLocator.listOf(new int[][]{{Field.account.ordinal(), card, card + 5},
+                            {Field.amount.ordinal(), amount, amount + 6}, {Field.currency.ordinal(), amount + 7, amount + 10}}));
+            DecimalFormat format = new DecimalFormat(Template.default_decimal_format);
+            format.setParseBigDecimal(true);
+            content.setMoneyFormat(format);
+            contents.add(content);
+        }
+    }
+
+    @Benchmark
+    public void parseHit(Blackhole blackhole) {
+        for (Message message : hits) blackhole.consume(service.parse(message));
+    }
+
+    @Benchmark
+    public void parseBatchHit(Blackhole blackhole) {
+        blackhole.consume(service.parseBatch(hits));
+    }
+
+    @Benchmark
+    public void parseMiss(Blackhole blackhole) {
+        for (Message message : misses) blackhole.consume(service.parse(message));
+    }
+
+    @Benchmark
+    public void newTemplate(Blackhole blackhole) {
+        for (Template.Content content : contents) blackhole.consume(service.newTemplate(content));
+    }
+}
@@ -0,0 +1,49 @@
+package com.yrrlsv.fin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// whole pipeline: xml read, template selection, field parsing, event bus; the sample backup has ~2200 messages
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DumpReaderBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int templateCount;
+
+    @Param({"500", "2000"})
+    private int messageCount;
+
+    private List<Template> templates;
+
+    @Setup
+    public void setUp() {
+        templates = BenchmarkData.withOtp(templateCount);
+    }
+
+    @Benchmark
+    public int execute() {
+        EventBus bus = new EventBus();
+        // limited, the provider is not read to the end, where it closes itself
+        try (StreamingBackupDataProvider provider = new StreamingBackupDataProvider(BenchmarkData.backup)) {
+            new DumpReader(null, BenchmarkData.limit(provider, messageCount), bus, templates).maxErrors(0).execute();
+        }
+        return bus.events().size();
+    }
+}
@@ -0,0 +1,85 @@
+package com.yrrlsv.fin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// templateCount is the number of distinct template formats the inputs are spread over
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+    private static final String[] dates = {"04.12.14 23:04", "11.01.16 14:06", "OTPdirekt:05.01.15 09:28: Splata"};
+    private static final String[] amounts = {"2.500,00UAH", "-334,00RUB (-88,62UAH)", "Zalyshok: 103,40UAH."};
+    private static final String[] currencies = {"2.500,00UAH", "-334,00RUB (-88,62UAH)", "112.87 UAH"};
+
+    @Param({"1", "10", "100"})
+    private int templateCount;
+
+    @Param({"100", "1000"})
+    private int messageCount;
+
+    private final Parser dateParser = Parser.create(Field.date).get();
+    private final Parser moneyParser = Parser.create(Field.amount).get();
+    private final Parser currencyParser = Parser.create(Field.currency).get();
+    private final Message message = new Message("");
+    private Template.Content[] contents;
+
+    @Setup
+    public void setUp() {
+        contents = new Template.Content[templateCount];
+        for (int t = 0; t < templateCount; t++) {
+            DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+            symbols.setDecimalSeparator(',');
+            symbols.setGroupingSeparator('.');
+            DecimalFormat format = new DecimalFormat("#,##0.##", symbols);
+            format.setParseBigDecimal(true);
+            contents[t] = new Template.Content().setType(EventType.charge)
+                    .setDateTimeFormatter(DateTimeFormatter.ofPattern("dd.MM.yy HH:mm"))
+                    .setMoneyPattern(Pattern.compile("-?\\d{1,3}(?:\\.\\d{3})*,\\d{2}"))
+                    .setCurrencyPattern(Pattern.compile("[A-Z]{3}"));
+            contents[t].setDateTimePattern(Pattern.compile("\\d\\d\\.\\d\\d\\.\\d\\d \\d\\d:\\d\\d"));
+            contents[t].setMoneyFormat(format);
+        }
+    }
+
+    @Benchmark
+    public void dateParser(Blackhole blackhole) {
+        for (int i = 0; i < messageCount; i++) {
+            blackhole.consume(dateParser.parse(contents[i % templateCount], message, dates[i % dates.length]));
+        }
+    }
+
+    @Benchmark
+    public void moneyParser(Blackhole blackhole) {
+        for (int i = 0; i < messageCount; i++) {
+            blackhole.consume(moneyParser.parse(contents[i % templateCount], message, amounts[i % amounts.length]));
+        }
+    }
+
+    @Benchmark
+    public void currencyParser(Blackhole blackhole) {
+        for (int i = 0; i < messageCount; i++) {
+            blackhole.consume(currencyParser.parse(contents[i % templateCount], message, currencies[i % currencies.length]));
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.yrrlsv.fin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+// Events on disk a column per file, appended by a Writer subscribed to an EventBus and read back through
+// memory mapped files, so reports over many events neither parse messages nor build Event objects:
+// date.col - epoch second of the date in UTC, amount.col and balance.col - unscaled values at SCALE,
+// currency.col - the code packed in a short, type.col, payer.col and recipient.col - ids of the values
+// in the matching .dict file. Absent values are NONE. The data of failed events is not kept.
+// Amounts and balances have to fit a long at SCALE, under about 9.2e14 in absolute value. A Reader maps a column
+// whole, which limits a store to 2 GB per column file, about 268 million rows.
+public final class ColumnarEventStore {
+
+    public static final int SCALE = 4;
+    public static final long NONE = Long.MIN_VALUE;
+    public static final int NO_ID = -1;
+    private static final short NO_CURRENCY = -1;
+
+    private static final String DATE = "date.col", AMOUNT = "amount.col", BALANCE = "balance.col",
+            CURRENCY = "currency.col", TYPE = "type", PAYER = "payer", RECIPIENT = "recipient";
+
+    private ColumnarEventStore() {
+    }
+
+    // appends to the store in directory, created if missing
+    public static Writer writer(Path directory) {
+        return new Writer(directory);
+    }
+
+    public static Reader reader(Path directory) {
+        return new Reader(directory);
+    }
+
+    public static final class Writer implements EventBus.Subscriber, AutoCloseable {
+        private final DataOutputStream date, amount, balance, currency;
+        private final Column type, payer, recipient;
+
+        private Writer(Path directory) {
+            try {
+                Files.createDirectories(directory);
+                date = append(directory.resolve(DATE));
+                amount = append(directory.resolve(AMOUNT));
+                balance = append(directory.resolve(BALANCE));
+                currency = append(directory.resolve(CURRENCY));
+                type = new Column(directory, TYPE);
+                payer = new Column(directory, PAYER);
+                recipient = new Column(directory, RECIPIENT);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public synchronized void accept(List<Event> events) {
+            try {
+                for (Event event : events) write(event);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        // the values that can fail are converted first, so a rejected event leaves no partial row
+        private void write(Event event) throws IOException {
+            long amount = unscaled(event.amount());
+            long balance = unscaled(event.getBalance());
+            date.writeLong(event.date() != null ? event.date().toEpochSecond(ZoneOffset.UTC) : NONE);
+            this.amount.writeLong(amount);
+            this.balance.writeLong(balance);
+            currency.writeShort(event.currency() != null ? pack(event.currency().getCurrencyCode()) : NO_CURRENCY);
+            type.write(event.type().name());
+            payer.write(event.payer());
+            recipient.write(event.getRecipient());
+        }
+
+        public synchronized void flush() {
+            try {
+                for (DataOutputStream out : new DataOutputStream[]{date, amount, balance, currency}) out.flush();
+                for (Column column : new Column[]{type, payer, recipient}) column.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                for (DataOutputStream out : new DataOutputStream[]{date, amount, balance, currency}) out.close();
+                for (Column column : new Column[]{type, payer, recipient}) column.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private static long unscaled(BigDecimal value) {
+            if (value == null) return NONE;
+            BigInteger unscaled = value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue();
+            if (unscaled.bitLength() > 63 || unscaled.longValue() == NONE)
+                throw new IllegalArgumentException("out of the range of the store: " + value);
+            return unscaled.longValue();
+        }
+
+        private static DataOutputStream append(Path path) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        }
+    }
+
+    // dictionary encoded column: int ids in name.col, the values in id order in name.dict
+    private static final class Column {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final DataOutputStream values;
+        private final DataOutputStream dictionary;
+
+        private Column(Path directory, String name) throws IOException {
+            for (String value : dictionary(directory.resolve(name + ".dict"))) ids.put(value, ids.size());
+            values = Writer.append(directory.resolve(name + ".col"));
+            dictionary = Writer.append(directory.resolve(name + ".dict"));
+        }
+
+        private void write(String value) throws IOException {
+            if (value == null) {
+                values.writeInt(NO_ID);
+                return;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = ids.size();
+                ids.put(value, id);
+                dictionary.writeUTF(value);
+                dictionary.flush(); // before any row with the id can reach the disk
+            }
+            values.writeInt(id);
+        }
+
+        private void flush() throws IOException {
+            dictionary.flush();
+            values.flush();
+        }
+
+        private void close() throws IOException {
+            dictionary.close();
+            values.close();
+        }
+    }
+
+    // rows flushed when it was opened; columns are mapped before dictionaries are read, and the writer flushes
+    // a dictionary as soon as it assigns an id, so every id mapped has its value
+    public static final class Reader {
+        private final MappedByteBuffer date, amount, balance, currency, type, payer, recipient;
+        private final String[] types, payers, recipients;
+        private final EventType[] eventTypes;
+        private final int size;
+
+        private Reader(Path directory) {
+            try {
+                date = map(directory.resolve(DATE));
+                amount = map(directory.resolve(AMOUNT));
+                balance = map(directory.resolve(BALANCE));
+                currency = map(directory.resolve(CURRENCY));
+                type = map(directory.resolve(TYPE + ".col"));
+                payer = map(directory.resolve(PAYER + ".col"));
+                recipient = map(directory.resolve(RECIPIENT + ".col"));
+                types = dictionary(directory.resolve(TYPE + ".dict")).toArray(new String[0]);
+                payers = dictionary(directory.resolve(PAYER + ".dict")).toArray(new String[0]);
+                recipients = dictionary(directory.resolve(RECIPIENT + ".dict")).toArray(new String[0]);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            eventTypes = new EventType[types.length];
+            for (int i = 0; i < types.length; i++) eventTypes[i] = EventType.valueOf(types[i]);
+            size = Math.min(Math.min(Math.min(date.capacity() / 8, amount.capacity() / 8),
+                    Math.min(balance.capacity() / 8, currency.capacity() / 2)),
+                    Math.min(type.capacity() / 4, Math.min(payer.capacity() / 4, recipient.capacity() / 4)));
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long epochSecond(int row) {
+            return date.getLong(at(row, 8));
+        }
+
+        public LocalDateTime date(int row) {
+            long epochSecond = epochSecond(row);
+            return epochSecond != NONE ? LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC) : null;
+        }
+
+        public long unscaledAmount(int row) {
+            return amount.getLong(at(row, 8));
+        }
+
+        public BigDecimal amount(int row) {
+            return decimal(unscaledAmount(row));
+        }
+
+        public long unscaledBalance(int row) {
+            return balance.getLong(at(row, 8));
+        }
+
+        public BigDecimal balance(int row) {
+            return decimal(unscaledBalance(row));
+        }
+
+        public short currencyCode(int row) {
+            return currency.getShort(at(row, 2));
+        }
+
+        public Currency currency(int row) {
+            short code = currencyCode(row);
+            return code != NO_CURRENCY ? Currency.getInstance(unpack(code)) : null;
+        }
+
+        public EventType type(int row) {
+            return eventTypes[type.getInt(at(row, 4))];
+        }
+
+        public int payerId(int row) {
+            return payer.getInt(at(row, 4));
+        }
+
+        public String payer(int row) {
+            int id = payerId(row);
+            return id != NO_ID ? payers[id] : null;
+        }
+
+        public int recipientId(int row) {
+            return recipient.getInt(at(row, 4));
+        }
+
+        public String recipient(int row) {
+            int id = recipientId(row);
+            return id != NO_ID ? recipients[id] : null;
+        }
+
+        public Event event(int row) {
+            return new Event(type(row), payer(row), recipient(row), currency(row), date(row), amount(row), balance(row));
+        }
+
+        // byte offset of the row in a column of the width, in long arithmetic and checked against size
+        private int at(int row, int width) {
+            checkElementIndex(row, size);
+            return (int) ((long) row * width); // below the mapped capacity, itself an int
+        }
+
+        private static BigDecimal decimal(long unscaled) {
+            return unscaled != NONE ? BigDecimal.valueOf(unscaled, SCALE) : null;
+        }
+
+        private static MappedByteBuffer map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException(path + " is " + channel.size() + " bytes, over what one mapping holds");
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+    }
+
+    // three latin letters in base 26, as CurrencyParser indexes them
+    static short pack(String currency) {
+        return (short) (((currency.charAt(0) - 'A') * 26 + currency.charAt(1) - 'A') * 26 + currency.charAt(2) - 'A');
+    }
+
+    static String unpack(short code) {
+        return new String(new char[]{(char) ('A' + code / 676), (char) ('A' + code / 26 % 26), (char) ('A' + code % 26)});
+    }
+
+    private static List<String> dictionary(Path path) throws IOException {
+        List<String> values = new ArrayList<>();
+        if (!Files.exists(path)) return values;
+        try (InputStream file = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            while (true) values.add(in.readUTF());
+        } catch (EOFException e) {
+            return values;
+        }
+    }
+}
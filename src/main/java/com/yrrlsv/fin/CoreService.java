@@ -3,14 +3,26 @@ package com.yrrlsv.fin;
 import com.google.common.collect.ImmutableList;
 import org.apache.commons.lang3.NotImplementedException;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.MatchResult;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -18,46 +30,253 @@ public class CoreService {
 
     public static final String BROAD_PLACEHOLDER = "(.+)";
 
+    public enum Engine {
+        regex, // every candidate template tried with its own Pattern
+        automaton // candidates simulated together in one pass, Pattern only for what the automaton cannot compile
+    }
+
     private Set<Template> templates;
+    private volatile TemplateIndex index;
+    private volatile TemplateAutomaton automaton; // null for regex engine
+    private final TemplateAutomaton compiled; // loaded from a catalog, used while its templates are current
+    private volatile Map<Template, TemplatePlan> plans;
     private Map<Field, Parser> parsers;
+    private volatile int reorderInterval; // 0 for insertion order
+    private volatile ResultCache cache; // null when disabled
+    private volatile ShapeCache shapes; // null when disabled
+    private volatile Metrics metrics = new Metrics(false);
+    private final AtomicLong parsed = new AtomicLong();
+    private final LongAdder subproblems = new LongAdder();
 
     public CoreService(Set<Template> templates) {
+        this(templates, null);
+    }
+
+    // templates of the catalog, with the index and automaton program compiled when it was written
+    public CoreService(TemplateCatalog catalog) {
+        this(new LinkedHashSet<>(catalog.templates()), catalog);
+    }
+
+    private CoreService(Set<Template> templates, TemplateCatalog catalog) {
         this.templates = validateTemplates(templates);
-        this.parsers = Stream.of(Field.fields)
-                .collect(Collectors.toMap(key -> key, field -> Parser.create(field).get()));
+        boolean current = catalog != null && new ArrayList<>(this.templates).equals(catalog.templates());
+        this.index = current ? catalog.index() : new TemplateIndex(this.templates);
+        this.compiled = current ? catalog.automaton() : null;
+        this.parsers = parsers(DateScanner.DEFAULT_ZONE);
+        this.plans = plan(this.templates);
+    }
+
+    private static Map<Field, Parser> parsers(ZoneId zone) {
+        return Stream.of(Field.fields).collect(Collectors.toMap(key -> key, field -> Parser.create(field, zone).get()));
     }
 
     protected Set<Template> validateTemplates(Set<Template> templates) {
         return templates;
     }
 
+    public synchronized CoreService engine(Engine engine) {
+        if (engine == Engine.regex) automaton = null;
+        else if (compiled != null && compiled.templates().equals(index.templates())) automaton = compiled;
+        else automaton = new TemplateAutomaton(index.templates());
+        return this;
+    }
+
+    // Templates most often hit are tried first, the order is recomputed every given number of parsed messages
+    // from the hit counters, 0 keeps insertion order. When several templates match, the one earlier in the
+    // current order wins; ties keep insertion order, so the same counters always give the same result.
+    public synchronized CoreService reorderEvery(int messages) {
+        reorderInterval = messages;
+        reorder();
+        return this;
+    }
+
+    // Results of messages seen before (same sender and text) are kept up to about maxBytes of memory,
+    // least recently used dropped first; 0 disables. Results with dates are not kept, as a date without year
+    // depends on when the message was received. Cleared when templates change. A hit counts as a match of the
+    // template that produced the result, in the hit statistics and the metrics.
+    public synchronized CoreService cache(long maxBytes) {
+        cache = maxBytes > 0 ? new ResultCache(maxBytes) : null;
+        return this;
+    }
+
+    public long cacheHits() {
+        ResultCache cache = this.cache;
+        return cache != null ? cache.hits() : 0;
+    }
+
+    public long cacheMisses() {
+        ResultCache cache = this.cache;
+        return cache != null ? cache.misses() : 0;
+    }
+
+    public double cacheHitRatio() {
+        long hits = cacheHits();
+        long total = hits + cacheMisses();
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    public long cacheBytes() {
+        ResultCache cache = this.cache;
+        return cache != null ? cache.bytes() : 0;
+    }
+
+    // The template that matched the last message of the same sender and shape (digits, letters and their runs
+    // masked) is tried first, the template set is scanned only if it does not match. So a message matched by
+    // several templates goes to the remembered one. Up to maxShapes are kept, 0 disables.
+    public synchronized CoreService shapes(int maxShapes) {
+        shapes = maxShapes > 0 ? new ShapeCache(maxShapes) : null;
+        return this;
+    }
+
+    public long shapeHits() {
+        ShapeCache shapes = this.shapes;
+        return shapes != null ? shapes.hits() : 0;
+    }
+
+    public long shapeMisses() {
+        ShapeCache shapes = this.shapes;
+        return shapes != null ? shapes.misses() : 0;
+    }
+
+    // Zone the message dates are in, for dates without a year, UTC by default. Template plans are rebuilt,
+    // their hit counters kept.
+    public synchronized CoreService zone(ZoneId zone) {
+        parsers = parsers(zone);
+        Map<Template, TemplatePlan> plans = plan(templates);
+        for (TemplatePlan plan : plans.values()) {
+            TemplatePlan old = this.plans.get(plan.template);
+            plan.hits.add(old.hits.sum());
+            plan.misses.add(old.misses.sum());
+        }
+        this.plans = plans;
+        return this;
+    }
+
+    public CoreService metrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
     public List<Event> parse(Message message) {
+        return parse(message, new Batch());
+    }
+
+    // Results in message order. Settings are read once per batch, and the split memo table, the index and
+    // automaton scratch space are reused from message to message instead of allocated for each.
+    public List<List<Event>> parseBatch(List<Message> messages) {
+        Batch batch = new Batch();
+        List<List<Event>> results = new ArrayList<>(messages.size());
+        for (Message message : messages) results.add(parse(message, batch));
+        return results;
+    }
+
+    private List<Event> parse(Message message, Batch batch) {
+        batch.metrics.message();
+        ResultCache cache = batch.cache;
+        if (cache == null) return match(message, batch);
+
+        ResultCache.Entry cached = cache.get(message);
+        if (cached != null) {
+            // counted as the match it replays, so statistics and the order they give do not drift
+            if (cached.template != null) {
+                batch.metrics.template(cached.template, 0, true);
+                plan(cached.template).hits.increment();
+            }
+            parsed();
+            return cached.events;
+        }
+        long generation = cache.generation();
+        List<Event> events = match(message, batch);
+        if (events.stream().allMatch(e -> e.date() == null)) cache.put(message, events, batch.matched, generation);
+        return events;
+    }
+
+    private List<Event> match(Message message, Batch batch) {
         // warn: refine message i.g replace all \r\n  and cyrillic symbols
-        return templates.stream()
-                .map(t -> newEvent(t, message))
-                .filter(Optional::isPresent)
-                .map(e -> Collections.singletonList(e.get()))
-                .findFirst().orElse(Collections.emptyList());
+        Metrics metrics = batch.metrics;
+        batch.matched = null;
+        try {
+            ShapeCache shapes = batch.shapes;
+            String shape = null;
+            if (shapes != null) {
+                shape = ShapeCache.shape(message.sender(), message.text());
+                Template remembered = shapes.get(shape);
+                long start = metrics.start();
+                MatchResult match = remembered != null ? batch.find(remembered, message.text()) : null;
+                if (remembered != null) metrics.template(remembered, start, match != null);
+                if (match != null) {
+                    shapes.hit();
+                    TemplatePlan plan = plan(remembered);
+                    plan.hits.increment();
+                    batch.matched = remembered;
+                    return Collections.singletonList(newEvent(plan, message, match, batch));
+                }
+                shapes.miss();
+            }
+
+            List<Template> candidates = index.candidates(message.sender(), message.text(), batch.candidates);
+            TemplateAutomaton automaton = batch.automaton;
+            MatchResult[] matches = automaton != null
+                    ? automaton.match(message.text(), candidates, batch.matching)
+                    : null;
+            for (Template template : candidates) {
+                boolean simulated = automaton != null && automaton.supports(template);
+                long start = simulated ? 0 : metrics.start(); // the automaton ran for all candidates at once
+                MatchResult match = simulated
+                        ? automaton.result(matches, template)
+                        : batch.find(template, message.text());
+                metrics.template(template, start, match != null);
+                TemplatePlan plan = plan(template);
+                if (match == null) {
+                    plan.misses.increment();
+                    continue;
+                }
+                plan.hits.increment();
+                if (shapes != null) shapes.put(shape, template);
+                batch.matched = template;
+                return Collections.singletonList(newEvent(plan, message, match, batch));
+            }
+            return Collections.emptyList();
+        } finally {
+            parsed();
+        }
+    }
+
+    private void parsed() {
+        int interval = reorderInterval;
+        if (interval > 0 && parsed.incrementAndGet() % interval == 0) reorder();
     }
 
     protected Optional<Event> newEvent(Template template, Message message) {
-        Matcher matcher = template.pattern().matcher(message.text());
-        if (matcher.find()) {
-            Event.Builder builder = new Event.Builder();
-            int i = 1;
-            for (Placeholder placeholder : template.placeholders()) {
-                List<Event.Builder> cases = new CombinatorialTask(template.content(), message)
-                        .doThat(placeholder.fields(), matcher.group(i++));
-                if (cases.size() == 1) {
-                    builder.merge(cases.get(0));
-                } else if (!cases.isEmpty()) {
-                    //builder.merge(c_ases.get(0));
-                    throw new NotImplementedException("ambiguous variants while parsing :" + placeholder + " variants: " + cases);
-                }
-                //throw new RuntimeException(placeholder.toString() + " c_ases: " + c_ases);
+        Batch batch = new Batch();
+        MatchResult match = batch.find(template, message.text());
+        return match != null ? Optional.of(newEvent(plan(template), message, match, batch)) : Optional.empty();
+    }
+
+    private TemplatePlan plan(Template template) {
+        TemplatePlan plan = plans.get(template);
+        return plan != null ? plan : new TemplatePlan(template, parsers); // not added, e.g. through newEvent
+    }
+
+    private Event newEvent(TemplatePlan plan, Message message, MatchResult match, Batch batch) {
+        Event.Builder builder = new Event.Builder();
+        int i = 1;
+        for (TemplatePlan.Step step : plan.steps) {
+            List<Event.Builder> cases = new CombinatorialTask(plan.content, message, step,
+                    match.start(i), match.end(i++), batch).solve();
+            if (cases.size() == 1) {
+                builder.merge(cases.get(0));
+            } else if (!cases.isEmpty()) {
+                //builder.merge(c_ases.get(0));
+                throw new NotImplementedException("ambiguous variants while parsing :" + step.placeholder + " variants: " + cases);
             }
-            return Optional.of(builder.type(template.type()).build());
-        } else return Optional.empty();
+            //throw new RuntimeException(placeholder.toString() + " c_ases: " + c_ases);
+        }
+        return builder.type(plan.template.type()).build();
     }
 
     public Template newTemplate(Template.Content content) {
@@ -70,8 +289,8 @@ public class CoreService {
         int cursor = 0;
         for (FieldLocator locator : content.locators()) {
             String gap = text.substring(cursor, locator.start());
-            String fieldData = text.substring(locator.start(), locator.end());
-            List<Parser.Result> parsed = parsers.get(locator.field()).parse(content, content.message(), fieldData);
+            List<Parser.Result> parsed = parsers.get(locator.field())
+                    .parse(content, content.message(), text, locator.start(), locator.end());
             if (!parsed.isEmpty()) data.merge(parsed.get(0).data()); // get(0) ?
 
             if (selectedFields.size() == 0 || selectedText.indexOf(gap) == -1) {
@@ -83,7 +302,7 @@ public class CoreService {
                     selectedText.setLength(0);
                 }
             } else {
-                selectedText.append(gap).append(fieldData);
+                selectedText.append(gap).append(text, locator.start(), locator.end());
             }
             selectedFields.add(locator.field());
             cursor = locator.end();
@@ -95,43 +314,172 @@ public class CoreService {
         }
         regex.append(text.substring(cursor)); // tail
 
-        return new Template(content.type(), Pattern.compile(regex.toString()), placeholders,
+        return new Template(content.type(), Formats.pattern(regex.toString()), placeholders,
                 content.getDateTimePattern(), content.getDateTimeFormatter(), content.getCurrencyPattern(),
                 content.moneyFormat(), content.getCurrencyPattern());
     }
 
 
-    public boolean addTemplate(Template template) {
-        return templates.add(template);
+    // placeholder splits evaluated by parsing so far, memoized ones not counted
+    public long subproblems() {
+        return subproblems.sum();
+    }
+
+    public synchronized boolean addTemplate(Template template) {
+        if (!templates.add(template)) return false;
+        Map<Template, TemplatePlan> plans = new IdentityHashMap<>(this.plans);
+        plans.put(template, new TemplatePlan(template, parsers));
+        this.plans = plans;
+        index = ordered(new TemplateIndex(templates)); // set order may change on insert, so rebuild from it
+        if (automaton != null) automaton = new TemplateAutomaton(index.templates());
+        clearCache();
+        ShapeCache shapes = this.shapes;
+        if (shapes != null) shapes.clear(); // the new template may fit better
+        return true;
+    }
+
+    private synchronized void reorder() {
+        TemplateIndex reordered = ordered(index);
+        if (reordered == index) return;
+        index = reordered;
+        clearCache(); // another template may win now
+    }
+
+    // after the index change, so a result computed on the old index is not put back
+    private void clearCache() {
+        ResultCache cache = this.cache;
+        if (cache != null) cache.clear();
+    }
+
+    private TemplateIndex ordered(TemplateIndex index) {
+        return index.ordered(reorderInterval > 0 ? t -> plan(t).hits.sum() : t -> 0);
+    }
+
+    // hits and misses per template keyed by type, senders and pattern, so a later run starts with the learned order
+    public void saveStatistics(String path) {
+        Properties statistics = new Properties();
+        for (TemplatePlan plan : plans.values()) {
+            statistics.setProperty(key(plan.template), plan.hits.sum() + " " + plan.misses.sum());
+        }
+        try (OutputStream out = Files.newOutputStream(Paths.get(path))) {
+            statistics.store(out, "template hits and misses");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
+    public synchronized CoreService loadStatistics(String path) {
+        Properties statistics = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            statistics.load(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (TemplatePlan plan : plans.values()) {
+            String counters = statistics.getProperty(key(plan.template));
+            if (counters == null) continue;
+            String[] hitsAndMisses = counters.split(" ");
+            plan.hits.reset();
+            plan.hits.add(Long.parseLong(hitsAndMisses[0]));
+            plan.misses.reset();
+            plan.misses.add(Long.parseLong(hitsAndMisses[1]));
+        }
+        reorder();
+        return this;
+    }
+
+    private static String key(Template template) {
+        return template.type() + " " + template.senders() + " " + template.regex();
+    }
+
+    private Map<Template, TemplatePlan> plan(Set<Template> templates) {
+        Map<Template, TemplatePlan> plans = new IdentityHashMap<>();
+        for (Template template : templates) plans.put(template, new TemplatePlan(template, parsers));
+        return plans;
+    }
+
+    // What one parse call reads once: the settings, and the split memo table, cleared for every use instead
+    // of allocated. Used by one thread.
+    private final class Batch {
+        private final Metrics metrics = CoreService.this.metrics;
+        private final ResultCache cache = CoreService.this.cache;
+        private final ShapeCache shapes = CoreService.this.shapes;
+        private final TemplateAutomaton automaton = CoreService.this.automaton;
+        private final TemplateAutomaton.Scratch matching = automaton != null ? automaton.scratch() : null;
+        private final TemplateIndex.Scratch candidates = new TemplateIndex.Scratch();
+        private final Map<Long, List<Event.Builder>> solved = new HashMap<>();
+        private Template matched; // by the last match(), null for none
+
+        // the thread's matcher of the template, so the match is valid until the template is tried again
+        private MatchResult find(Template template, String text) {
+            Matcher matcher = Matchers.templates.matcher(template.pattern(), text);
+            return matcher.find() ? matcher : null;
+        }
+    }
+
+    // Splits placeholder text between its fields: the field of highest priority is parsed first, every case it
+    // returns splits the text and the fields around it into two smaller problems. Solutions are memoized by
+    // (field range, text span), so a span reached through different cases is solved once.
     private class CombinatorialTask {
+        private static final int MAX_MEMO_FIELDS = 0xff;
+        private static final int MAX_MEMO_OFFSET = 0xffffff;
+
         private final Template.Content content;
         private final Message message;
+        private final TemplatePlan.Step step;
+        private final Metrics metrics;
+        private final String text;
+        private final int start;
+        private final int end;
+        private final Map<Long, List<Event.Builder>> solved;
+        private final boolean memoized; // the key packs fields into 8 bits and offsets into 24, or no memo
 
-        private CombinatorialTask(Template.Content content, Message message) {
+        // placeholder text is message text[start, end), start -1 for a group that did not participate in the match
+        private CombinatorialTask(Template.Content content, Message message, TemplatePlan.Step step,
+                                  int start, int end, Batch batch) {
             this.content = content;
             this.message = message;
+            this.step = step;
+            this.metrics = batch.metrics;
+            this.text = message.text();
+            this.start = Math.max(start, 0);
+            this.end = Math.max(end, 0);
+            this.solved = batch.solved;
+            this.memoized = step.size() <= MAX_MEMO_FIELDS && this.end <= MAX_MEMO_OFFSET;
+            solved.clear();
+        }
+
+        private List<Event.Builder> solve() {
+            return solve(0, step.size(), start, end);
         }
 
+        // builders in the result are shared between subproblems, callers merge them into new ones
+        private List<Event.Builder> solve(int from, int to, int start, int end) {
+            if (from == to) return Collections.singletonList(new Event.Builder());
+            else if (start == end) return Collections.emptyList();
 
-        private List<Event.Builder> doThat(List<Field> fields, String rowData) {
-            if (fields.isEmpty()) return Collections.singletonList(new Event.Builder());
-            else if (rowData.isEmpty()) return Collections.emptyList();
+            long key = (long) from << 56 | (long) to << 48 | (long) start << 24 | end;
+            List<Event.Builder> known = memoized ? solved.get(key) : null;
+            if (known != null) return known;
+            subproblems.increment();
 
             ImmutableList.Builder<Event.Builder> merged = new ImmutableList.Builder<>();
-            Field aim = Collections.min(fields, Parser.priority);
-            for (Parser.Result aCase : parsers.get(aim).parse(content, message, rowData)) {
-                int indexOf = fields.indexOf(aim);
-                List<Event.Builder> left = doThat(fields.subList(0, indexOf), aCase.before());
-                List<Event.Builder> right = doThat(fields.subList(indexOf + 1, fields.size()), aCase.after());
+            int aim = step.aim(from, to);
+            long started = metrics.start();
+            List<Parser.Result> cases = step.parsers[aim].parse(content, message, text, start, end);
+            metrics.parser(step.placeholder.fields().get(aim), started);
+            for (Parser.Result aCase : cases) {
+                List<Event.Builder> left = solve(from, aim, start, aCase.start());
+                List<Event.Builder> right = solve(aim + 1, to, aCase.end(), end);
                 for (Event.Builder l : left) {
                     for (Event.Builder r : right) {
-                        merged.add(aCase.data().merge(l).merge(r));
+                        merged.add(new Event.Builder().merge(aCase.data()).merge(l).merge(r));
                     }
                 }
             }
-            return merged.build();
+            List<Event.Builder> result = merged.build();
+            if (memoized) solved.put(key, result);
+            return result;
         }
     }
 
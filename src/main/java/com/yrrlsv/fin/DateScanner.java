@@ -0,0 +1,123 @@
+package com.yrrlsv.fin;
+
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+// Dates read straight from the characters, no regex, no formatter, no shared state.
+// A layout is a fixed length mask: y M d H m s stand for a digit of that field, '?' for any char,
+// '_' for a whitespace, everything else for itself. Layouts are tried in this order.
+// Year-less layouts take the year of the message date in the given zone, the year before if that puts the date
+// more than SKEW after the message, so a sender clock slightly ahead does not move the date a year back.
+final class DateScanner {
+
+    static final ZoneId DEFAULT_ZONE = ZoneOffset.UTC;
+    static final Duration SKEW = Duration.ofDays(1);
+
+    private static final String[] layouts = {
+            "dd?MM.yy_HH:mm",
+            "dd?MM.yyyy_HH:mm",
+            "HH:mm:ss dd/MM/yyyy",
+            "yyyyMMddHHmmss",
+            "dd/MM HH:mm",
+            "MM.dd HH:mm"
+    };
+
+    private DateScanner() {
+    }
+
+    // index of the first layout matching at start, or -1
+    static int layout(CharSequence text, int start, int limit) {
+        for (int layout = 0; layout < layouts.length; layout++) {
+            if (matches(text, start, limit, layouts[layout])) return layout;
+        }
+        return -1;
+    }
+
+    static int length(int layout) {
+        return layouts[layout].length();
+    }
+
+    // date at start in the layout, null if some field is out of range; messageDate is epoch millis or null for now
+    static LocalDateTime date(CharSequence text, int start, int layout, Long messageDate, ZoneId zone) {
+        String mask = layouts[layout];
+        int year = 0, years = 0, month = 0, day = 0, hour = 0, minute = 0, second = 0;
+        for (int k = 0; k < mask.length(); k++) {
+            int digit = text.charAt(start + k) - '0';
+            switch (mask.charAt(k)) {
+                case 'y':
+                    year = year * 10 + digit;
+                    years++;
+                    break;
+                case 'M':
+                    month = month * 10 + digit;
+                    break;
+                case 'd':
+                    day = day * 10 + digit;
+                    break;
+                case 'H':
+                    hour = hour * 10 + digit;
+                    break;
+                case 'm':
+                    minute = minute * 10 + digit;
+                    break;
+                case 's':
+                    second = second * 10 + digit;
+                    break;
+                default:
+            }
+        }
+        try {
+            if (years == 2) return LocalDateTime.of(2000 + year, month, day, hour, minute, second);
+            if (years == 4) return LocalDateTime.of(year, month, day, hour, minute, second);
+
+            LocalDateTime received = messageDate != null
+                    ? Instant.ofEpochMilli(messageDate).atZone(zone).toLocalDateTime()
+                    : LocalDateTime.now(zone);
+            LocalDateTime date = of(received.getYear(), month, day, hour, minute, second);
+            return date != null && !date.isAfter(received.plus(SKEW))
+                    ? date
+                    : LocalDateTime.of(received.getYear() - 1, month, day, hour, minute, second);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    // null for Feb 29 of a non leap year
+    private static LocalDateTime of(int year, int month, int day, int hour, int minute, int second) {
+        try {
+            return LocalDateTime.of(year, month, day, hour, minute, second);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean matches(CharSequence text, int start, int limit, String mask) {
+        if (start + mask.length() > limit) return false;
+        for (int k = 0; k < mask.length(); k++) {
+            char c = text.charAt(start + k);
+            char m = mask.charAt(k);
+            switch (m) {
+                case 'y':
+                case 'M':
+                case 'd':
+                case 'H':
+                case 'm':
+                case 's':
+                    if (c < '0' || c > '9') return false;
+                    break;
+                case '?':
+                    break;
+                case '_':
+                    if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') return false;
+                    break;
+                default:
+                    if (c != m) return false;
+            }
+        }
+        return true;
+    }
+}
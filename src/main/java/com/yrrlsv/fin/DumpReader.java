@@ -1,9 +1,20 @@
 package com.yrrlsv.fin;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 public class DumpReader {
 
@@ -17,10 +28,18 @@ public class DumpReader {
 
     private TemplateProvider templateProvider;
     private DataProvider dataProvider;
+    private IncrementalDataProvider incremental; // null to read every message
     private CoreService coreService;
     private EventBus eventBus;
 
+    private static final int IN_FLIGHT_PER_WORKER = 4;
+    private static final int REORDER_INTERVAL = 1024;
+
     private int errorsThreshold = Integer.MAX_VALUE;
+    private int parallelism = 1;
+    private int failed;
+    private int templatesAdded;
+    private String statistics; // template hit counters file, null to keep insertion order
     private boolean skeepTemplateCreation = true;
     private boolean skeepTemplateChoice = true;
 
@@ -35,38 +54,142 @@ public class DumpReader {
     }
 
     public void execute() {
-        int failed = 0;
-        for (Message message = dataProvider.nextMessage(); message != null; message = dataProvider.nextMessage()) {
+        failed = 0;
+        if (statistics != null) {
+            if (Files.exists(Paths.get(statistics))) coreService.loadStatistics(statistics);
+            coreService.reorderEvery(REORDER_INTERVAL);
+        }
+        if (parallelism > 1) executeParallel();
+        else executeSequential();
+        eventBus.flush();
+        if (incremental != null) incremental.commit();
+        if (statistics != null) coreService.saveStatistics(statistics);
+    }
 
+    private void executeSequential() {
+        for (Message message = dataProvider.nextMessage(); message != null; message = dataProvider.nextMessage()) {
             List<Event> results = null;
             try {
                 results = coreService.parse(message);
             } catch (Exception e) {
-                if (++failed < errorsThreshold) {
-                    System.out.println("failed parsing message: " + message);
-                    e.printStackTrace();
-                }
+                failed(message, e);
             }
+            emit(message, results);
+        }
+    }
 
-            Event event = null;
-            if (results != null && results.isEmpty() && !skeepTemplateCreation) {
-                Optional<Template> templateOptional = templateProvider.newTemplate(message.text());
-                if (templateOptional.isPresent()) {
-                    coreService.addTemplate(templateOptional.get());
-                    event = coreService.newEvent(templateOptional.get(), message).get();
-                }
-            } else if (results != null && results.size() == 1) {
-                event = results.get(0);
-            } else if (results != null && !skeepTemplateChoice) {
-                event = templateProvider.chooseTemplate(results);
+    // messages are parsed by the pool, but results are taken in reading order, so errors accounting,
+    // template creation and events order are the same as for sequential execution
+    private void executeParallel() {
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        Deque<Pending> window = new ArrayDeque<>();
+        try {
+            for (Message message = dataProvider.nextMessage(); message != null; message = dataProvider.nextMessage()) {
+                Message submitted = message;
+                window.add(new Pending(message, templatesAdded, workers.submit(() -> coreService.parse(submitted))));
+                if (window.size() >= parallelism * IN_FLIGHT_PER_WORKER) complete(window.poll());
             }
+            while (!window.isEmpty()) complete(window.poll());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
 
-            eventBus.fire(event != null ? event : Event.failed(message.text()));
+    private void complete(Pending pending) {
+        List<Event> results = null;
+        try {
+            results = pending.results.get();
+            // parsed before a template got added, so that template was not tried yet
+            if (results.isEmpty() && pending.templatesAdded != templatesAdded)
+                results = coreService.parse(pending.message);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            failed(pending.message, e.getCause());
+        } catch (Exception e) {
+            failed(pending.message, e);
         }
+        emit(pending.message, results);
+    }
+
+    private void failed(Message message, Throwable e) {
+        coreService.metrics().failure(e.getClass().getSimpleName());
+        if (++failed < errorsThreshold) {
+            System.out.println("failed parsing message: " + message);
+            e.printStackTrace();
+        }
+    }
+
+    private void emit(Message message, List<Event> results) {
+        Event event = null;
+        if (results != null && results.isEmpty() && !skeepTemplateCreation) {
+            Optional<Template> templateOptional = templateProvider.newTemplate(message.text());
+            if (templateOptional.isPresent()) {
+                if (coreService.addTemplate(templateOptional.get())) templatesAdded++;
+                event = coreService.newEvent(templateOptional.get(), message).get();
+            }
+        } else if (results != null && results.size() == 1) {
+            event = results.get(0);
+        } else if (results != null && !skeepTemplateChoice) {
+            event = templateProvider.chooseTemplate(results);
+        }
+
+        if (event == null) coreService.metrics().failure(Metrics.UNMATCHED);
+        eventBus.fire(event != null ? event : Event.failed(message.text()));
+    }
+
+    public DumpReader parallelism(int parallelism) {
+        checkArgument(parallelism > 0, "parallelism %s", parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    // templates tried in the order of their hits, learned from and saved back to the file
+    public DumpReader statistics(String path) {
+        this.statistics = path;
+        return this;
+    }
+
+    // only messages not processed by the runs with the same checkpoint, see IncrementalDataProvider
+    public DumpReader incremental(Path checkpoint) {
+        this.incremental = new IncrementalDataProvider(dataProvider, checkpoint);
+        this.dataProvider = incremental;
+        return this;
+    }
+
+    public DumpReader metrics(Metrics metrics) {
+        coreService.metrics(metrics.queueDepth(eventBus::pending));
+        return this;
+    }
+
+    // repeated messages answered from a cache of about maxBytes, see CoreService.cache
+    public DumpReader cache(long maxBytes) {
+        coreService.cache(maxBytes);
+        return this;
+    }
+
+    // template of the last message of the same shape tried first, see CoreService.shapes
+    public DumpReader shapes(int maxShapes) {
+        coreService.shapes(maxShapes);
+        return this;
     }
 
     public DumpReader maxErrors(int errorsThreshold) {
         this.errorsThreshold = errorsThreshold;
         return this;
     }
+
+    private static class Pending {
+        private final Message message;
+        private final int templatesAdded;
+        private final Future<List<Event>> results;
+
+        private Pending(Message message, int templatesAdded, Future<List<Event>> results) {
+            this.message = message;
+            this.templatesAdded = templatesAdded;
+            this.results = results;
+        }
+    }
 }
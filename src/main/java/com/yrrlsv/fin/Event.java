@@ -44,6 +44,13 @@ public class Event {
         this.balance = balance;
     }
 
+    // every field, as read back from an EventStore segment
+    Event(EventType type, String payer, String recipient, Currency currency, LocalDateTime date,
+          BigDecimal amount, BigDecimal balance, Map<Field, String> data) {
+        this(type, payer, recipient, currency, date, amount, balance);
+        this.data = data;
+    }
+
     public EventType type() {
         return type;
     }
@@ -1,23 +1,254 @@
 package com.yrrlsv.fin;
 
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class EventBus {
+import static com.google.common.base.Preconditions.checkArgument;
 
-    private ArrayList<Event> events = new ArrayList<>();
+// Keeps every fired event and hands it to the subscribers of its type. By default subscribers are called
+// on the firing thread; an asynchronous bus gives each subscriber a pre-allocated ring of events and
+// a thread of its own that takes them in batches, so a slow subscriber does not hold up parsing
+// unless its backpressure is block. Fired events are kept for events(), in memory or, bounded, on disk.
+public class EventBus implements AutoCloseable {
+
+    public enum Backpressure {
+        block, // fire waits for room in the ring
+        drop, // events that find the ring full are lost, see dropped()
+        spill // events that find the ring full wait in an unbounded queue behind it
+    }
+
+    public interface Subscriber {
+        // events is unmodifiable and not reused, so it may be kept or passed to another thread
+        void accept(List<Event> events);
+    }
+
+    private static final int DEFAULT_BATCH = 64;
+
+    private EventStore events = new EventStore();
+    private final Map<EventType, List<Subscription>> subscriptions = new EnumMap<>(EventType.class);
+    private final List<Subscription> all = new ArrayList<>();
+    private final int capacity; // 0 for synchronous delivery
+    private final Backpressure backpressure;
+    private final LongAdder dropped = new LongAdder();
+    private int batch = DEFAULT_BATCH;
+
+    public EventBus() {
+        this(0, Backpressure.block);
+    }
+
+    public EventBus(int capacity, Backpressure backpressure) {
+        checkArgument(capacity >= 0, "capacity %s", capacity);
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        // read by fire() without the lock
+        for (EventType type : EventType.values()) subscriptions.put(type, new CopyOnWriteArrayList<>());
+    }
+
+    // most events an asynchronous subscriber gets at once
+    public EventBus batch(int batch) {
+        checkArgument(batch > 0, "batch %s", batch);
+        this.batch = batch;
+        return this;
+    }
+
+    // events over about maxBytes in memory are appended to segment files in directory, null for the default
+    // temporary one; to be set before the first event is fired
+    public EventBus bounded(long maxBytes, Path directory) {
+        this.events = new EventStore(maxBytes, directory);
+        return this;
+    }
+
+    public EventBus subscribe(EventType type, Subscriber subscriber) {
+        return subscribe(EnumSet.of(type), subscriber);
+    }
+
+    public synchronized EventBus subscribe(Set<EventType> types, Subscriber subscriber) {
+        Subscription subscription = new Subscription(subscriber, types);
+        for (EventType type : types) subscriptions.get(type).add(subscription);
+        all.add(subscription);
+        return this;
+    }
 
     public void fire(Event event) {
         events.add(event);
-        switch (event.type()) {
-            case charge:
-                break;
-            case replenishment:
-                break;
+        for (Subscription subscription : subscriptions.get(event.type())) {
+            subscription.offer(event);
         }
     }
 
+    // fired but not delivered yet
+    public int pending() {
+        int pending = 0;
+        for (Subscription subscription : subscriptions()) pending += subscription.pending();
+        return pending;
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    // waits until every event fired so far is delivered
+    public void flush() {
+        for (Subscription subscription : subscriptions()) subscription.flush();
+    }
+
+    // also drops the fired events and their segment files
+    @Override
+    public void close() {
+        flush();
+        for (Subscription subscription : subscriptions()) subscription.stop();
+        events.close();
+    }
+
+    // streamed from disk when bounded, so better iterated than indexed
     public List<Event> events() {
-        return events;
+        return events.view();
+    }
+
+    private synchronized List<Subscription> subscriptions() {
+        return new ArrayList<>(all);
+    }
+
+    private final class Subscription implements Runnable {
+        private final Subscriber subscriber;
+        private final Event[] ring;
+        private final ArrayDeque<Event> spilled = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Condition delivered = lock.newCondition();
+        private int head;
+        private int size;
+        private long accepted;
+        private long done;
+        private boolean stopped;
+        private final Thread thread;
+
+        private Subscription(Subscriber subscriber, Set<EventType> types) {
+            this.subscriber = subscriber;
+            this.ring = new Event[capacity];
+            if (capacity > 0) {
+                thread = new Thread(this, "event-bus-" + types);
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                thread = null;
+            }
+        }
+
+        private void offer(Event event) {
+            if (thread == null) {
+                deliver(Collections.singletonList(event));
+                return;
+            }
+            lock.lock();
+            try {
+                if (size == ring.length || !spilled.isEmpty()) {
+                    switch (backpressure) {
+                        case drop:
+                            dropped.increment();
+                            return;
+                        case spill:
+                            spilled.add(event);
+                            accepted++;
+                            notEmpty.signal();
+                            return;
+                        case block:
+                            while (size == ring.length && !stopped) notFull.awaitUninterruptibly();
+                            if (stopped) return;
+                    }
+                }
+                ring[(head + size++) % ring.length] = event;
+                accepted++;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<Event> taken = new ArrayList<>(Math.min(batch, ring.length));
+                lock.lock();
+                try {
+                    while (size == 0 && !stopped) notEmpty.awaitUninterruptibly();
+                    if (size == 0) return;
+                    for (int i = Math.min(batch, size); i > 0; i--) {
+                        taken.add(ring[head]);
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                        size--;
+                    }
+                    // spilled events follow the ring in order as room frees up
+                    while (size < ring.length && !spilled.isEmpty()) {
+                        ring[(head + size++) % ring.length] = spilled.poll();
+                    }
+                    notFull.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                deliver(Collections.unmodifiableList(taken));
+                lock.lock();
+                try {
+                    done += taken.size();
+                    delivered.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private void deliver(List<Event> events) {
+            try {
+                subscriber.accept(events);
+            } catch (RuntimeException e) {
+                System.out.println("subscriber failed on events: " + events);
+                e.printStackTrace();
+            }
+        }
+
+        private int pending() {
+            if (thread == null) return 0;
+            lock.lock();
+            try {
+                return (int) (accepted - done);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void flush() {
+            if (thread == null) return;
+            lock.lock();
+            try {
+                while (done < accepted && thread.isAlive()) delivered.awaitUninterruptibly();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void stop() {
+            if (thread == null) return;
+            lock.lock();
+            try {
+                stopped = true;
+                notEmpty.signal();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 }
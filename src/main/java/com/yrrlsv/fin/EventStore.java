@@ -0,0 +1,317 @@
+package com.yrrlsv.fin;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// Events in firing order. Unbounded, they are all kept in memory; bounded, the events in memory are appended
+// to segment files once their estimated size goes over the budget, and are read back from there one by one.
+// Written by one thread at a time, readable while written: a streaming view sees the events stored when it was iterated.
+final class EventStore {
+
+    private static final int EVENT_SIZE = 160; // object, fields and boxed values
+    private static final int SEGMENT_BYTES = 64 << 20;
+    private static final int CHUNK = 1024; // events a reader reads per opening of a segment
+    private static final int STRIDE = 256; // events per offset a segment keeps for get(i)
+
+    private final long maxBytes;
+    private final Path directory;
+    private final List<Event> memory = new ArrayList<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private DataOutputStream out; // of the last segment
+    private CountingOutputStream written; // under out, bytes of the last segment
+    private long bytes;
+    private long size;
+
+    EventStore() {
+        this(Long.MAX_VALUE, null);
+    }
+
+    EventStore(long maxBytes, Path directory) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+    }
+
+    synchronized void add(Event event) {
+        memory.add(event);
+        bytes += size(event);
+        size++;
+        if (bytes > maxBytes) spill();
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    // Unbounded, the events in memory, unmodifiable. Bounded, a copy of them until something is spilled, then
+    // a list that streams the segments a chunk at a time: iterate it; get(i) reads at most STRIDE events of the
+    // segment holding i, from the offset kept for that stride.
+    synchronized List<Event> view() {
+        if (maxBytes == Long.MAX_VALUE) return Collections.unmodifiableList(memory);
+        if (segments.isEmpty()) return Collections.unmodifiableList(new ArrayList<>(memory));
+        return new AbstractList<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                return new Reader();
+            }
+
+            @Override
+            public Event get(int index) {
+                return EventStore.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return (int) Math.min(EventStore.this.size(), Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    synchronized void close() {
+        try {
+            if (out != null) out.close();
+            out = null;
+            written = null;
+            for (Segment segment : segments) Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        segments.clear();
+        memory.clear();
+        bytes = 0;
+        size = 0;
+    }
+
+    private void spill() {
+        try {
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last == null || written.getCount() >= SEGMENT_BYTES) {
+                if (out != null) out.close();
+                last = new Segment(directory != null
+                        ? Files.createTempFile(directory, "events-", ".segment")
+                        : Files.createTempFile("events-", ".segment"));
+                written = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(last.path)));
+                out = new DataOutputStream(written);
+                segments.add(last);
+            }
+            for (Event event : memory) {
+                if (last.count % STRIDE == 0) last.mark(written.getCount());
+                write(out, event);
+                last.count++;
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        memory.clear();
+        bytes = 0;
+    }
+
+    private Event get(int index) {
+        if (index < 0) throw new IndexOutOfBoundsException("index " + index);
+        Path path = null;
+        long offset = 0;
+        long skip = index;
+        synchronized (this) {
+            for (Segment segment : segments) {
+                if (skip < segment.count) {
+                    path = segment.path;
+                    offset = segment.offsets[(int) (skip / STRIDE)];
+                    skip %= STRIDE;
+                    break;
+                }
+                skip -= segment.count;
+            }
+            if (path == null) {
+                if (skip >= memory.size()) throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+                return memory.get((int) skip);
+            }
+        }
+        try (InputStream file = Files.newInputStream(path)) {
+            ByteStreams.skipFully(file, offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+            for (; skip > 0; skip--) read(in);
+            return read(in);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long size(Event event) {
+        long size = EVENT_SIZE;
+        if (event.payer() != null) size += 2L * event.payer().length();
+        if (event.getRecipient() != null) size += 2L * event.getRecipient().length();
+        if (event.data() != null) {
+            for (String value : event.data().values()) size += 48 + (value != null ? 2L * value.length() : 0);
+        }
+        return size;
+    }
+
+    // deleted by close(), so a store not closed leaves its segments behind
+    private static final class Segment {
+        private final Path path;
+        private long count;
+        private long[] offsets = new long[16]; // of every STRIDE-th event
+        private int marked;
+
+        private Segment(Path path) {
+            this.path = path;
+        }
+
+        private void mark(long offset) {
+            if (marked == offsets.length) offsets = Arrays.copyOf(offsets, marked * 2);
+            offsets[marked++] = offset;
+        }
+    }
+
+    // reads the segments stored when it was created, then a copy of the events then in memory; a segment is
+    // open only while a chunk of it is read, so a reader left before its end holds no file
+    private final class Reader implements Iterator<Event> {
+        private final List<Path> paths = new ArrayList<>();
+        private final List<Long> counts = new ArrayList<>();
+        private final List<Event> head;
+        private List<Event> chunk = Collections.emptyList();
+        private int next; // in chunk
+        private int segment = -1;
+        private long left; // events of the segment not yet read
+        private long offset; // bytes of the segment read
+        private boolean tail;
+
+        private Reader() {
+            synchronized (EventStore.this) {
+                for (Segment segment : segments) {
+                    paths.add(segment.path);
+                    counts.add(segment.count);
+                }
+                head = new ArrayList<>(memory);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == chunk.size()) {
+                if (left > 0) {
+                    chunk = readChunk();
+                } else if (segment + 1 < paths.size()) {
+                    left = counts.get(++segment);
+                    offset = 0;
+                    continue;
+                } else if (!tail) {
+                    tail = true;
+                    chunk = head;
+                } else {
+                    return false;
+                }
+                next = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Event next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return chunk.get(next++);
+        }
+
+        private List<Event> readChunk() {
+            List<Event> events = new ArrayList<>();
+            try (InputStream file = Files.newInputStream(paths.get(segment))) {
+                ByteStreams.skipFully(file, offset);
+                CountingInputStream counting = new CountingInputStream(new BufferedInputStream(file));
+                DataInputStream in = new DataInputStream(counting);
+                for (; left > 0 && events.size() < CHUNK; left--) events.add(read(in));
+                offset += counting.getCount();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return events;
+        }
+    }
+
+    static void write(DataOutput out, Event event) throws IOException {
+        out.writeByte(event.type().ordinal());
+        writeString(out, event.payer());
+        writeString(out, event.getRecipient());
+        writeString(out, event.currency() != null ? event.currency().getCurrencyCode() : null);
+        writeString(out, event.date() != null ? event.date().toString() : null);
+        writeString(out, event.amount() != null ? event.amount().toString() : null);
+        writeString(out, event.getBalance() != null ? event.getBalance().toString() : null);
+        Map<Field, String> data = event.data();
+        out.writeInt(data != null ? data.size() : -1);
+        if (data != null) {
+            for (Map.Entry<Field, String> entry : data.entrySet()) {
+                out.writeByte(entry.getKey().ordinal());
+                writeString(out, entry.getValue());
+            }
+        }
+    }
+
+    static Event read(DataInput in) throws IOException {
+        EventType type = EventType.values()[in.readByte()];
+        String payer = readString(in);
+        String recipient = readString(in);
+        String currency = readString(in);
+        String date = readString(in);
+        String amount = readString(in);
+        String balance = readString(in);
+        int fields = in.readInt();
+        Map<Field, String> data = null;
+        if (fields >= 0) {
+            data = new EnumMap<>(Field.class);
+            for (int i = 0; i < fields; i++) data.put(Field.fields[in.readByte()], readString(in));
+        }
+        return new Event(type, payer, recipient,
+                currency != null ? Currency.getInstance(currency) : null,
+                date != null ? LocalDateTime.parse(date) : null,
+                amount != null ? new BigDecimal(amount) : null,
+                balance != null ? new BigDecimal(balance) : null,
+                data);
+    }
+
+    // length prefixed, unlike writeUTF not limited to 64K
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,59 @@
+package com.yrrlsv.fin;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+// Process wide registry of compiled formats keyed by their source string: templates of one bank mostly share
+// their date, money and currency formats, so they share single instances instead of compiling their own.
+// A null source means the format is not set and stays null. The source of a shared format can be looked up back,
+// so templates built from source strings can be written to a TemplateCatalog.
+final class Formats {
+
+    private static final ConcurrentMap<String, Pattern> patterns = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, DateTimeFormatter> dateTimeFormatters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, DecimalFormat> decimalFormats = new ConcurrentHashMap<>();
+    private static final Map<Object, String> sources = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private Formats() {
+    }
+
+    static Pattern pattern(String regex) {
+        return regex != null ? patterns.computeIfAbsent(regex, Pattern::compile) : null;
+    }
+
+    static DateTimeFormatter dateTimeFormatter(String format) {
+        return format != null ? dateTimeFormatters.computeIfAbsent(format, f -> source(DateTimeFormatter.ofPattern(f), f)) : null;
+    }
+
+    // shared, and DecimalFormat is not thread safe: kept as template settings, amounts are read by MoneyScanner
+    static DecimalFormat decimalFormat(String format) {
+        return format != null ? decimalFormats.computeIfAbsent(format, f -> source(newDecimalFormat(f), f)) : null;
+    }
+
+    // source string the format was created from, null if it was not created here
+    static String source(Object format) {
+        return format != null ? sources.get(format) : null;
+    }
+
+    private static <T> T source(T format, String source) {
+        sources.put(format, source);
+        return format;
+    }
+
+    private static DecimalFormat newDecimalFormat(String moneyFormat) {
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+        symbols.setDecimalSeparator('.');
+        //symbols.setGroupingSeparator(',');
+        // String pattern = "#,##0.0#"; // w/o grouping splitter "###.##"
+        DecimalFormat decimalFormat = new DecimalFormat(moneyFormat, symbols);
+        decimalFormat.setParseBigDecimal(true);
+        return decimalFormat;
+    }
+}
@@ -0,0 +1,135 @@
+package com.yrrlsv.fin;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Messages of a source not seen by the runs committed to its checkpoint. The checkpoint holds the latest
+// message date (the watermark) and hashes of the messages dated within window of it: older messages are
+// skipped by date alone, the ones within the window by hash, so late arrivals and equal dates are not lost.
+// Messages without a date are always passed on. commit() once the messages read are processed.
+public class IncrementalDataProvider implements DataProvider {
+
+    public static final long DEFAULT_WINDOW = TimeUnit.DAYS.toMillis(1);
+
+    private static final HashFunction murmur = Hashing.murmur3_128();
+
+    private final DataProvider source;
+    private final Path checkpoint;
+    private final long window;
+    private final long watermark;
+    private final Set<Long> processed = new HashSet<>();
+    private final Map<Long, Long> seen = new HashMap<>(); // hash to date, of messages within window of latest
+    private long latest;
+    private int pruneAt = 1024;
+    private long skipped;
+
+    public IncrementalDataProvider(DataProvider source, Path checkpoint) {
+        this(source, checkpoint, DEFAULT_WINDOW);
+    }
+
+    public IncrementalDataProvider(DataProvider source, Path checkpoint, long window) {
+        this.source = source;
+        this.checkpoint = checkpoint;
+        this.window = window;
+        long watermark = Long.MIN_VALUE;
+        if (Files.exists(checkpoint)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint)))) {
+                watermark = in.readLong();
+                for (int i = in.readInt(); i > 0; i--) {
+                    long hash = in.readLong();
+                    long date = in.readLong();
+                    processed.add(hash);
+                    seen.put(hash, date);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        this.watermark = watermark;
+        this.latest = watermark;
+    }
+
+    @Override
+    public Message nextMessage() {
+        for (Message message = source.nextMessage(); message != null; message = source.nextMessage()) {
+            Long date = message.date();
+            if (date == null) return message;
+            if (watermark != Long.MIN_VALUE && date < watermark - window) {
+                skipped++;
+                continue;
+            }
+            long hash = hash(message);
+            see(hash, date);
+            if (processed.contains(hash)) {
+                skipped++;
+                continue;
+            }
+            return message;
+        }
+        return null;
+    }
+
+    public long skipped() {
+        return skipped;
+    }
+
+    // stores the watermark and boundary hashes of everything read so far, atomically
+    public void commit() {
+        prune();
+        try {
+            Path temp = Files.createTempFile(checkpoint.toAbsolutePath().getParent(), "checkpoint-", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeLong(latest);
+                out.writeInt(seen.size());
+                for (Map.Entry<Long, Long> entry : seen.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+            Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void see(long hash, long date) {
+        if (date > latest) latest = date;
+        if (date < latest - window) return;
+        seen.put(hash, date);
+        if (seen.size() >= pruneAt) {
+            prune();
+            pruneAt = Math.max(1024, seen.size() * 2);
+        }
+    }
+
+    private void prune() {
+        for (Iterator<Long> dates = seen.values().iterator(); dates.hasNext(); ) {
+            if (dates.next() < latest - window) dates.remove();
+        }
+    }
+
+    static long hash(Message message) {
+        return murmur.newHasher()
+                .putLong(message.date())
+                .putString(message.sender() != null ? message.sender() : "", StandardCharsets.UTF_8)
+                .putChar('\u0000')
+                .putString(message.text() != null ? message.text() : "", StandardCharsets.UTF_8)
+                .hash().asLong();
+    }
+}
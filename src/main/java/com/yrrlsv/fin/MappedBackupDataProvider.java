@@ -0,0 +1,253 @@
+package com.yrrlsv.fin;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// SMS Backup & Restore xml scanned straight from a memory mapped file. No xml stack: the scanner only looks for
+// <sms .../> records and decodes the body, date and address attributes, every other attribute is skipped
+// byte by byte.
+// The file is mapped window by window, a record crossing the window end is re-read from the next window.
+public class MappedBackupDataProvider implements DataProvider, AutoCloseable {
+
+    private static final int WINDOW = 64 * 1024 * 1024;
+    private static final byte[] SMS = "<sms".getBytes();
+    private static final byte[] COMMENT = "<!--".getBytes();
+    private static final byte[] BODY = "body".getBytes();
+    private static final byte[] DATE = "date".getBytes();
+    private static final byte[] ADDRESS = "address".getBytes();
+
+    private final FileChannel channel;
+    private final long size;
+    private final int window;
+
+    private MappedByteBuffer buffer;
+    private long offset; // file position of buffer start
+    private int position;
+    private int resume; // where the next window has to start when nothing was found in this one
+    private char[] chars = new char[256];
+
+    public MappedBackupDataProvider(String path) {
+        this(path, WINDOW);
+    }
+
+    MappedBackupDataProvider(String path, int window) {
+        try {
+            this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            this.size = channel.size();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.window = window;
+        map(0);
+    }
+
+    @Override
+    public Message nextMessage() {
+        while (buffer != null) {
+            int record = find(position);
+            if (record == -1) {
+                if (!remap(resume)) return null;
+                continue;
+            }
+            Message message = record(record);
+            if (message != null) return message;
+            // record is cut by the window end
+            if (!remap(record)) throw new IllegalStateException("unterminated <sms> record at " + (offset + record));
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        buffer = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // start of next <sms element at or after from, -1 if none in this window
+    private int find(int from) {
+        int limit = buffer.limit();
+        resume = Math.max(from, limit - SMS.length); // "<sms" may be split by the window end
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) != '<') continue;
+            if (startsWith(i, COMMENT)) {
+                int end = indexOf(i + COMMENT.length, "-->");
+                if (end == -1) {
+                    resume = i;
+                    return -1;
+                }
+                i = end + 2;
+            } else if (startsWith(i, SMS) && i + SMS.length < limit && delimiter(buffer.get(i + SMS.length))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // null if the record does not end inside the window
+    private Message record(int start) {
+        int limit = buffer.limit();
+        int i = start + SMS.length;
+        String body = null;
+        Long date = null;
+        String address = null;
+        while (true) {
+            while (i < limit && whitespace(buffer.get(i))) i++;
+            if (i >= limit) return null;
+            byte b = buffer.get(i);
+            if (b == '>' || b == '/') {
+                int end = indexOf(i, ">");
+                if (end == -1) return null;
+                position = end + 1;
+                return new Message(body, date, address);
+            }
+
+            int name = i;
+            while (i < limit && buffer.get(i) != '=' && !whitespace(buffer.get(i))) i++;
+            int nameEnd = i;
+            while (i < limit && (whitespace(buffer.get(i)) || buffer.get(i) == '=')) i++;
+            if (i >= limit) return null;
+            byte quote = buffer.get(i++);
+            int value = i;
+            while (i < limit && buffer.get(i) != quote) i++;
+            if (i >= limit) return null;
+            int valueEnd = i++;
+
+            if (equals(name, nameEnd, BODY)) body = decode(value, valueEnd);
+            else if (equals(name, nameEnd, DATE)) date = number(value, valueEnd);
+            else if (equals(name, nameEnd, ADDRESS)) address = decode(value, valueEnd);
+        }
+    }
+
+    private Long number(int from, int to) {
+        if (from == to) return null;
+        long result = 0;
+        boolean negative = buffer.get(from) == '-';
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') return Long.valueOf(decode(from, to).trim());
+            result = result * 10 + (b - '0');
+        }
+        return negative ? -result : result;
+    }
+
+    // UTF-8 bytes of an attribute value to string, with entity references resolved and
+    // line breaks normalized to spaces the way an xml parser does for attributes
+    private String decode(int from, int to) {
+        int length = 0;
+        int i = from;
+        while (i < to) {
+            if (length + 2 > chars.length) chars = Arrays.copyOf(chars, chars.length * 2);
+            int b = buffer.get(i) & 0xFF;
+            int codePoint;
+            if (b == '&') {
+                int end = indexOf(i, ";");
+                if (end == -1 || end > to) throw new IllegalStateException("broken entity at " + (offset + i));
+                codePoint = entity(i + 1, end);
+                i = end + 1;
+            } else if (b < 0x80) {
+                codePoint = b;
+                i++;
+                if (b == '\r' && i < to && buffer.get(i) == '\n') i++;
+                if (b == '\r' || b == '\n' || b == '\t') codePoint = ' ';
+            } else if (b < 0xE0) {
+                codePoint = (b & 0x1F) << 6 | buffer.get(i + 1) & 0x3F;
+                i += 2;
+            } else if (b < 0xF0) {
+                codePoint = (b & 0x0F) << 12 | (buffer.get(i + 1) & 0x3F) << 6 | buffer.get(i + 2) & 0x3F;
+                i += 3;
+            } else {
+                codePoint = (b & 0x07) << 18 | (buffer.get(i + 1) & 0x3F) << 12
+                        | (buffer.get(i + 2) & 0x3F) << 6 | buffer.get(i + 3) & 0x3F;
+                i += 4;
+            }
+            length += Character.toChars(codePoint, chars, length);
+        }
+        return new String(chars, 0, length);
+    }
+
+    private int entity(int from, int to) {
+        if (buffer.get(from) == '#') {
+            boolean hex = buffer.get(from + 1) == 'x' || buffer.get(from + 1) == 'X';
+            int codePoint = 0;
+            for (int i = hex ? from + 2 : from + 1; i < to; i++) {
+                codePoint = codePoint * (hex ? 16 : 10) + Character.digit(buffer.get(i), hex ? 16 : 10);
+            }
+            return codePoint;
+        }
+        StringBuilder name = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) name.append((char) buffer.get(i));
+        switch (name.toString()) {
+            case "amp":
+                return '&';
+            case "lt":
+                return '<';
+            case "gt":
+                return '>';
+            case "quot":
+                return '"';
+            case "apos":
+                return '\'';
+            default:
+                throw new IllegalStateException("unknown entity &" + name + "; at " + (offset + from));
+        }
+    }
+
+    private boolean remap(int from) {
+        if (offset + buffer.limit() >= size) {
+            buffer = null;
+            return false;
+        }
+        if (from == 0) throw new IllegalStateException("record at " + offset + " does not fit into " + window + " bytes");
+        map(offset + from);
+        return true;
+    }
+
+    private void map(long from) {
+        try {
+            offset = from;
+            position = 0;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(window, size - from));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int indexOf(int from, String text) {
+        byte first = (byte) text.charAt(0);
+        for (int i = from; i <= buffer.limit() - text.length(); i++) {
+            if (buffer.get(i) != first) continue;
+            int k = 1;
+            while (k < text.length() && buffer.get(i + k) == text.charAt(k)) k++;
+            if (k == text.length()) return i;
+        }
+        return -1;
+    }
+
+    private boolean startsWith(int at, byte[] prefix) {
+        if (at + prefix.length > buffer.limit()) return false;
+        for (int k = 0; k < prefix.length; k++) {
+            if (buffer.get(at + k) != prefix[k]) return false;
+        }
+        return true;
+    }
+
+    private boolean equals(int from, int to, byte[] name) {
+        return to - from == name.length && startsWith(from, name);
+    }
+
+    private static boolean whitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean delimiter(byte b) {
+        return whitespace(b) || b == '/' || b == '>';
+    }
+}
@@ -0,0 +1,32 @@
+package com.yrrlsv.fin;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Matchers kept per thread and pattern and reset onto the next input instead of created for every match.
+// A matcher is valid until its pattern is matched again on the same thread through the same instance, so
+// template matches, held while the parsers run, do not share an instance with the parsers' format patterns.
+final class Matchers {
+
+    static final Matchers templates = new Matchers();
+    static final Matchers formats = new Matchers();
+
+    private static final int MAX_PATTERNS = 4096; // per thread, forgets everything once over
+
+    private final ThreadLocal<Map<Pattern, Matcher>> matchers = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    private Matchers() {
+    }
+
+    Matcher matcher(Pattern pattern, CharSequence text) {
+        Map<Pattern, Matcher> matchers = this.matchers.get();
+        Matcher matcher = matchers.get(pattern);
+        if (matcher != null) return matcher.reset(text);
+        if (matchers.size() >= MAX_PATTERNS) matchers.clear();
+        matcher = pattern.matcher(text);
+        matchers.put(pattern, matcher);
+        return matcher;
+    }
+}
@@ -9,11 +9,21 @@ public class Message {
     private String text;
     @XmlAttribute
     private Long date;
+    @XmlAttribute(name = "address")
+    private String sender;
 
     public String text() {
         return text;
     }
 
+    public Long date() {
+        return date;
+    }
+
+    public String sender() {
+        return sender;
+    }
+
     public Message() {
     }
 
@@ -21,11 +31,23 @@ public class Message {
         this.text = text;
     }
 
+    public Message(String text, Long date) {
+        this.text = text;
+        this.date = date;
+    }
+
+    public Message(String text, Long date, String sender) {
+        this.text = text;
+        this.date = date;
+        this.sender = sender;
+    }
+
     @Override
     public String toString() {
         return "Message{" +
                 "text='" + text + '\'' +
                 ", date=" + date +
+                ", sender='" + sender + '\'' +
                 '}';
     }
 }
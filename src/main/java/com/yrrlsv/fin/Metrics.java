@@ -0,0 +1,280 @@
+package com.yrrlsv.fin;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToDoubleFunction;
+
+// Counters and latency histograms of the parse pipeline: messages, matches and match latency per template,
+// parser latency per field, failures by cause and event bus queue depth.
+// Made for the hot path: LongAdder cells, log2 latency buckets, and nothing but a volatile read when disabled.
+// Read through JMX (register) or a periodic in-process Reporter.
+public class Metrics implements MetricsMXBean, AutoCloseable {
+
+    public static final String UNMATCHED = "unmatched"; // failure cause of messages no template matched
+
+    public interface Reporter {
+        void report(Metrics metrics);
+    }
+
+    public static final Reporter console = metrics -> System.out.println(metrics);
+
+    private volatile boolean enabled;
+    private volatile long started = System.nanoTime();
+    private final LongAdder messages = new LongAdder();
+    private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final Map<Template, TemplateMetrics> templates = new ConcurrentHashMap<>();
+    private final Histogram[] parsers = new Histogram[Field.fields.length];
+    private volatile IntSupplier queueDepth = () -> 0;
+
+    private ObjectName name;
+    private ScheduledExecutorService reporter;
+
+    public Metrics() {
+        this(true);
+    }
+
+    public Metrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < parsers.length; i++) parsers[i] = new Histogram();
+    }
+
+    // recording
+
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void message() {
+        if (enabled) messages.increment();
+    }
+
+    void failure(String cause) {
+        if (enabled) failures.computeIfAbsent(cause, c -> new LongAdder()).increment();
+    }
+
+    // A template tried since start, matched or not. No latency for start 0: the match had no time of its own,
+    // or recording was enabled after start() was taken.
+    void template(Template template, long start, boolean matched) {
+        if (!enabled) return;
+        TemplateMetrics metrics = templates.computeIfAbsent(template, t -> new TemplateMetrics());
+        if (start != 0) metrics.latency.record(System.nanoTime() - start);
+        if (matched) metrics.matches.increment();
+    }
+
+    void parser(Field field, long start) {
+        if (enabled && start != 0) parsers[field.ordinal()].record(System.nanoTime() - start);
+    }
+
+    public Metrics queueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+        return this;
+    }
+
+    // exposure
+
+    public Metrics register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            this.name = new ObjectName("com.yrrlsv.fin:type=Metrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, this.name);
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    public synchronized Metrics reportEvery(long period, TimeUnit unit, Reporter reporter) {
+        if (this.reporter == null) {
+            this.reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.reporter.scheduleAtFixedRate(() -> reporter.report(this), period, period, unit);
+        return this;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (reporter != null) reporter.shutdownNow();
+        reporter = null;
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                throw new RuntimeException(e);
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public double getMessagesPerSecond() {
+        long nanos = System.nanoTime() - started;
+        return nanos > 0 ? messages.sum() * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> result = new TreeMap<>();
+        failures.forEach((cause, count) -> result.put(cause, count.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getTemplateMatches() {
+        Map<String, Long> result = new TreeMap<>();
+        templates.forEach((template, metrics) -> result.put(name(template), metrics.matches.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getTemplateLatencyMean() {
+        return templateLatency(Histogram::meanMicros);
+    }
+
+    @Override
+    public Map<String, Double> getTemplateLatencyP99() {
+        return templateLatency(h -> h.percentileMicros(0.99));
+    }
+
+    @Override
+    public Map<String, Double> getParserLatencyMean() {
+        return parserLatency(Histogram::meanMicros);
+    }
+
+    @Override
+    public Map<String, Double> getParserLatencyP99() {
+        return parserLatency(h -> h.percentileMicros(0.99));
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.getAsInt();
+    }
+
+    @Override
+    public void reset() {
+        messages.reset();
+        failures.clear();
+        templates.clear();
+        for (Histogram parser : parsers) parser.reset();
+        started = System.nanoTime();
+    }
+
+    public Histogram template(Template template) {
+        TemplateMetrics metrics = templates.get(template);
+        return metrics != null ? metrics.latency : new Histogram();
+    }
+
+    public Histogram parser(Field field) {
+        return parsers[field.ordinal()];
+    }
+
+    private Map<String, Double> templateLatency(ToDoubleFunction<Histogram> statistic) {
+        Map<String, Double> result = new TreeMap<>();
+        templates.forEach((template, metrics) -> result.put(name(template), statistic.applyAsDouble(metrics.latency)));
+        return result;
+    }
+
+    private Map<String, Double> parserLatency(ToDoubleFunction<Histogram> statistic) {
+        Map<String, Double> result = new TreeMap<>();
+        for (Field field : Field.fields) {
+            if (parsers[field.ordinal()].count() > 0) {
+                result.put(field.name(), statistic.applyAsDouble(parsers[field.ordinal()]));
+            }
+        }
+        return result;
+    }
+
+    private static String name(Template template) {
+        return template.type() + " " + template.senders() + " " + template.regex();
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics{" +
+                "messages=" + getMessages() +
+                ", messagesPerSecond=" + String.format("%.1f", getMessagesPerSecond()) +
+                ", failures=" + getFailures() +
+                ", queueDepth=" + getQueueDepth() +
+                ", parserLatencyMean=" + getParserLatencyMean() +
+                ", templateMatches=" + getTemplateMatches() +
+                '}';
+    }
+
+    private static final class TemplateMetrics {
+        private final LongAdder matches = new LongAdder();
+        private final Histogram latency = new Histogram();
+    }
+
+    // latencies in power of two nanosecond buckets, percentiles are bucket upper bounds
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)) & 63].increment();
+            count.increment();
+            sum.add(nanos);
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) bucket.reset();
+            count.reset();
+            sum.reset();
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double meanMicros() {
+            long count = count();
+            return count > 0 ? sum.sum() / 1e3 / count : 0;
+        }
+
+        public double percentileMicros(double quantile) {
+            long count = count();
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) return i == 0 ? 0 : (1L << i) / 1e3;
+            }
+            return Long.MAX_VALUE / 1e3;
+        }
+    }
+}
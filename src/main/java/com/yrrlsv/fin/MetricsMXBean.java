@@ -0,0 +1,31 @@
+package com.yrrlsv.fin;
+
+import java.util.Map;
+
+// JMX view of Metrics, latencies in microseconds
+public interface MetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getMessages();
+
+    double getMessagesPerSecond();
+
+    Map<String, Long> getFailures();
+
+    Map<String, Long> getTemplateMatches();
+
+    Map<String, Double> getTemplateLatencyMean();
+
+    Map<String, Double> getTemplateLatencyP99();
+
+    Map<String, Double> getParserLatencyMean();
+
+    Map<String, Double> getParserLatencyP99();
+
+    int getQueueDepth();
+
+    void reset();
+}
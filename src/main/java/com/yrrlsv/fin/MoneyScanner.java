@@ -0,0 +1,119 @@
+package com.yrrlsv.fin;
+
+import java.math.BigDecimal;
+
+// Amounts read straight from the characters, no regex, no intermediate strings, no shared state.
+// Recognised grouping styles, tried in this order:
+//   dots/comma   [1-9]\d{0,2}(?:\.\d{3})+(?:,\d+)?       2.000.500,00
+//   commas/dots  [1-9]\d{0,2}(?:,\d{3})+(?:\.\d+)?       34,435,500.09
+//   quotes       [1-9]\d{0,2}(?:'\d{3})+(?:[.,]\d+)?     2'000'000.00
+//   floating     (?:0|[1-9]\d*)(?:[,.]\d+)?              1000,10
+// and an amount is neither preceded nor followed by a digit, quote, comma or dot.
+final class MoneyScanner {
+
+    private static final char NONE = 0;
+    private static final char[] groupings = {'.', ',', '\'', NONE};
+    private static final String[] decimals = {",", ".", ".,", ".,"};
+
+    private MoneyScanner() {
+    }
+
+    // end of the amount starting at start, or -1 if there is none; from is where the text begins for the
+    // "not preceded by" check
+    static int end(CharSequence text, int from, int start, int limit) {
+        if (start > from && separatorOrDigit(text.charAt(start - 1))) return -1;
+        for (int style = 0; style < groupings.length; style++) {
+            int end = styleEnd(text, start, limit, style);
+            if (end != -1) return end;
+        }
+        return -1;
+    }
+
+    // value of text[start, end) read in the first style matching it whole, an optional sign included,
+    // null if it is not an amount
+    static BigDecimal amount(CharSequence text, int start, int end) {
+        boolean negative = false;
+        if (start < end && (text.charAt(start) == '-' || text.charAt(start) == '+')) {
+            negative = text.charAt(start) == '-';
+            start++;
+        }
+        for (int style = 0; style < groupings.length; style++) {
+            if (styleEnd(text, start, end, style) == end) {
+                BigDecimal amount = value(text, start, end, groupings[style]);
+                return negative ? amount.negate() : amount;
+            }
+        }
+        return null;
+    }
+
+    private static int styleEnd(CharSequence text, int start, int limit, int style) {
+        char grouping = groupings[style];
+        int i = grouping == NONE ? integer(text, start, limit) : grouped(text, start, limit, grouping);
+        if (i == -1) return -1;
+        if (i + 1 < limit && decimals[style].indexOf(text.charAt(i)) != -1 && digit(text.charAt(i + 1))) {
+            i += 2;
+            while (i < limit && digit(text.charAt(i))) i++;
+        }
+        return i == limit || !separatorOrDigit(text.charAt(i)) ? i : -1;
+    }
+
+    private static int grouped(CharSequence text, int start, int limit, char grouping) {
+        if (start >= limit || !nonZero(text.charAt(start))) return -1;
+        int i = start + 1;
+        while (i < limit && i - start < 3 && digit(text.charAt(i))) i++;
+        int groups = 0;
+        while (i + 4 <= limit && text.charAt(i) == grouping
+                && digit(text.charAt(i + 1)) && digit(text.charAt(i + 2)) && digit(text.charAt(i + 3))) {
+            i += 4;
+            groups++;
+        }
+        return groups > 0 ? i : -1;
+    }
+
+    private static int integer(CharSequence text, int start, int limit) {
+        if (start >= limit || !digit(text.charAt(start))) return -1;
+        if (text.charAt(start) == '0') return start + 1;
+        int i = start + 1;
+        while (i < limit && digit(text.charAt(i))) i++;
+        return i;
+    }
+
+    private static BigDecimal value(CharSequence text, int start, int end, char grouping) {
+        long unscaled = 0;
+        int scale = 0;
+        boolean fraction = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (digit(c)) {
+                if (unscaled > (Long.MAX_VALUE - 9) / 10) return slowValue(text, start, end, grouping);
+                unscaled = unscaled * 10 + (c - '0');
+                if (fraction) scale++;
+            } else if (c != grouping) {
+                fraction = true;
+            }
+        }
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    private static BigDecimal slowValue(CharSequence text, int start, int end, char grouping) {
+        StringBuilder digits = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (digit(c)) digits.append(c);
+            else if (c != grouping) digits.append('.');
+        }
+        return new BigDecimal(digits.toString());
+    }
+
+    private static boolean digit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean nonZero(char c) {
+        return c >= '1' && c <= '9';
+    }
+
+    private static boolean separatorOrDigit(char c) {
+        return digit(c) || c == '\'' || c == ',' || c == '.';
+    }
+}
@@ -1,14 +1,12 @@
 package com.yrrlsv.fin;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 
 import java.math.BigDecimal;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.ParseException;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
@@ -32,53 +30,59 @@ public interface Parser {
     Comparator<Field> priority = new Comparator<Field>() {
 
         private final List<Field> order = Arrays.asList(date, amount, balance, currency, account, shop, none);
+        private final int[] ranks = Arrays.stream(Field.fields).mapToInt(order::indexOf).toArray();
 
         @Override
         public int compare(Field o1, Field o2) {
-            return Integer.compare(order.indexOf(o1), order.indexOf(o2));
+            return Integer.compare(ranks[o1.ordinal()], ranks[o2.ordinal()]);
         }
     };
 
+    // data found in text[start, end) of the parsed text, the text around it is left for the other fields
     class Result {
         public static final List<Result> empty = Collections.emptyList();
 
-        private String before;
-        private Event.Builder data;
-        private String after;
-        // private String regex; ??
+        private final int start;
+        private final Event.Builder data;
+        private final int end;
 
-        public Result(String before, Event.Builder data, String after) {
-            this.before = before;
+        public Result(int start, Event.Builder data, int end) {
+            this.start = start;
             this.data = data;
-            this.after = after;
+            this.end = end;
         }
 
-        public String before() {
-            return before;
+        public int start() {
+            return start;
         }
 
         public Event.Builder data() {
             return data;
         }
 
-        public String after() {
-            return after;
+        public int end() {
+            return end;
         }
 
         @Override
         public String toString() {
             return "Result{" +
-                    "before='" + before + '\'' +
+                    "start=" + start +
                     ", data=" + data +
-                    ", after='" + after + '\'' +
+                    ", end=" + end +
                     '}';
         }
     }
 
     static Optional<Parser> create(Field field) {
+        return create(field, DateScanner.DEFAULT_ZONE);
+    }
+
+    // zone is where year-less dates are dated, see DateScanner
+    static Optional<Parser> create(Field field, ZoneId zone) {
         switch (field) {
             case date:
-                return Optional.of(new DateParser(date -> new Event.Builder().date(date)));
+                return Optional.of(new DateParser(date -> new Event.Builder().date(date), zone));
             case amount:
                 return Optional.of(new MoneyParser(amount -> new Event.Builder().amount(amount)));
             case balance:
@@ -96,168 +100,166 @@ public interface Parser {
         }
     }
 
-    List<Result> parse(Template.Content content, Message message, String data);
+    // fields found in text[start, end), results point into text
+    List<Result> parse(Template.Content content, Message message, CharSequence text, int start, int end);
+
+    default List<Result> parse(Template.Content content, Message message, String data) {
+        return parse(content, message, data, 0, data.length());
+    }
 
 }
 
 class DummyParser implements Parser {
     @Override
-    public List<Result> parse(Template.Content content, Message message, String data) {
-        return Collections.singletonList(new Result("", new Event.Builder(), ""));
+    public List<Result> parse(Template.Content content, Message message, CharSequence text, int start, int end) {
+        return Collections.singletonList(new Result(start, new Event.Builder(), end));
     }
 }
 
-abstract class RegexParser<T> implements Parser {
-    protected final Function<T, Event.Builder> applier;
+// dates located and read with the template pattern and formatter, or by DateScanner when the template has none
+class DateParser implements Parser {
+    private final Function<LocalDateTime, Event.Builder> applier;
+    private final ZoneId zone;
 
-    public RegexParser(Function<T, Event.Builder> applier) {
+    DateParser(Function<LocalDateTime, Event.Builder> applier, ZoneId zone) {
         this.applier = applier;
+        this.zone = zone;
     }
 
-    public List<Parser.Result> parse(Template.Content content, Message message, String data) {
-        ImmutableList.Builder<Parser.Result> results = new ImmutableList.Builder<>();
-        Matcher matcher = pattern(content).matcher(data);
-        while (matcher.find()) {
-            String group = matcher.group();
-            results.add(new Parser.Result(
-                    data.substring(0, matcher.start()),
-                    applier.apply(format(content, group)),
-                    data.substring(matcher.end())));
+    @Override
+    public List<Result> parse(Template.Content content, Message message, CharSequence text, int start, int end) {
+        ImmutableList.Builder<Result> results = new ImmutableList.Builder<>();
+        Pattern pattern = content.getDateTimePattern();
+        DateTimeFormatter formatter = content.getDateTimeFormatter();
+        if (pattern != null && formatter != null) {
+            Matcher matcher = Matchers.formats.matcher(pattern, text).region(start, end);
+            while (matcher.find()) {
+                // the match alone, the formatter must not read past it
+                LocalDateTime date = formatter.parse(matcher.group(), LocalDateTime::from);
+                results.add(new Result(matcher.start(), applier.apply(date), matcher.end()));
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                int layout = DateScanner.layout(text, i, end);
+                if (layout == -1) continue;
+                LocalDateTime date = DateScanner.date(text, i, layout, message.date(), zone);
+                if (date == null) continue;
+                int dateEnd = i + DateScanner.length(layout);
+                results.add(new Result(i, applier.apply(date), dateEnd));
+                i = dateEnd - 1;
+            }
         }
         return results.build();
     }
-
-    protected abstract Pattern pattern(Template.Content content);
-
-    protected abstract T format(Template.Content content, String match);
 }
 
-class DateParser extends RegexParser<LocalDateTime> {
-
-    // T0D0: cache DateTimeFormatter instead of compiling it each time
-    public static final ImmutableMap<Pattern, Function<String, LocalDateTime>> formatters =
-            new ImmutableMap.Builder<Pattern, Function<String, LocalDateTime>>()
-                    .put(Pattern.compile("\\d\\d.\\d\\d\\.\\d\\d\\s\\d\\d\\:\\d\\d"),
-                            s -> localDateTime(s, "dd.MM.yy HH:mm"))
-                    .put(Pattern.compile("\\d\\d.\\d\\d\\.\\d\\d\\d\\d\\s\\d\\d\\:\\d\\d"),
-                            s -> localDateTime(s, "dd.MM.yyyy HH:mm"))
-                    .put(Pattern.compile("\\d{2}\\:\\d{2}\\:\\d{2} \\d{2}\\/\\d{2}\\/\\d{4}"),
-                            s -> localDateTime(s, "HH:mm:ss dd/MM/yyyy"))
-                    .put(Pattern.compile("\\d{14}"),
-                            s -> localDateTime(s, "yyyyMMddHHmmss"))
-                    .put(Pattern.compile("\\d{2}\\/\\d{2} \\d{2}:\\d{2}"),
-                            s -> noYearDateTime(s, "dd/MM HH:mm"))
-                    .put(Pattern.compile("\\d{2}\\.\\d{2} \\d{2}:\\d{2}"),
-                            s -> noYearDateTime(s, "MM.dd HH:mm"))
-                    .build();
-
-    private static LocalDateTime localDateTime(String s, String pattern) {
-        return LocalDateTime.parse(s, DateTimeFormatter.ofPattern(pattern));
-    }
+// amounts located by the template money pattern, or by MoneyScanner itself when the template has none;
+// the value always comes from MoneyScanner, and a match it cannot read is no result
+class MoneyParser implements Parser {
+    private final Function<BigDecimal, Event.Builder> applier;
 
-    private static LocalDateTime noYearDateTime(String s, String pattern) {
-        return localDateTime("2016_" + s, "yyyy_" + pattern); //  ¯\_(ツ)_/¯
+    MoneyParser(Function<BigDecimal, Event.Builder> applier) {
+        this.applier = applier;
     }
 
-    public DateParser(Function<LocalDateTime, Event.Builder> builderFunction) {
-        super(builderFunction);
+    @Override
+    public List<Result> parse(Template.Content content, Message message, CharSequence text, int start, int end) {
+        ImmutableList.Builder<Result> results = new ImmutableList.Builder<>();
+        Pattern pattern = content.moneyPattern();
+        if (pattern != null) {
+            Matcher matcher = Matchers.formats.matcher(pattern, text).region(start, end);
+            while (matcher.find()) {
+                BigDecimal amount = MoneyScanner.amount(text, matcher.start(), matcher.end());
+                if (amount != null) results.add(new Result(matcher.start(), applier.apply(amount), matcher.end()));
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                int amountEnd = MoneyScanner.end(text, start, i, end);
+                BigDecimal amount = amountEnd != -1 ? MoneyScanner.amount(text, i, amountEnd) : null;
+                if (amount != null) {
+                    results.add(new Result(i, applier.apply(amount), amountEnd));
+                    i = amountEnd;
+                }
+            }
+        }
+        return results.build();
     }
+}
 
-    @Override
-    protected Pattern pattern(Template.Content content) {
-        return content.getDateTimePattern();
+class AccountParser implements Parser {
+    private Function<String, Event.Builder> applier;
+
+    AccountParser(Function<String, Event.Builder> applier) {
+        this.applier = applier;
     }
 
     @Override
-    protected LocalDateTime format(Template.Content content, String match) {
-        return LocalDateTime.parse(match, content.getDateTimeFormatter());
+    public List<Result> parse(Template.Content content, Message message, CharSequence text, int start, int end) {
+        return Collections.singletonList(new Result(start, applier.apply(text.subSequence(start, end).toString()), end));
     }
 }
 
-class MoneyParser extends RegexParser<BigDecimal> implements Parser {
-    private static final Pattern dotsComma =
-            Pattern.compile("(?<![\\'\\,\\.\\d])[1-9]\\d{0,2}(?:\\.\\d{3})+(?:\\,\\d+)?(?![\\'\\,\\.\\d])");
-    private static final Pattern commasDots =
-            Pattern.compile("(?<![\\'\\,\\.\\d])[1-9]\\d{0,2}(?:\\,\\d{3})+(?:\\.\\d+)?(?![\\'\\,\\.\\d])");
-    private static final Pattern quotes =
-            Pattern.compile("(?<![\\'\\,\\.\\d])[1-9]\\d{0,2}(?:\\'\\d{3})+(?:[\\.\\,]\\d+)?(?![\\'\\,\\.\\d])");
-    private static final Pattern justFloating =
-            Pattern.compile("(?<![\\'\\,\\.\\d])(?:0|[1-9]\\d*)(?:[\\,\\.]\\d+)?(?![\\'\\,\\.\\d])");
-
-    public static final ImmutableMap<Pattern, Function<String, BigDecimal>> refiners =
-            new ImmutableMap.Builder<Pattern, Function<String, BigDecimal>>()
-                    .put(dotsComma, s -> format(s.replace(".", "").replace(',', '.')))
-                    .put(commasDots, s -> format(s.replace(",", "")))
-                    .put(quotes, s -> format(s.replace("\'", "").replace(',', '.')))
-                    .put(justFloating, s -> format(s.replace(',', '.')))
-                    .build();
-
-    private static final DecimalFormat format;
+// ISO 4217 codes looked up in a table indexed by the three letters, case insensitive, so the text is scanned once;
+// currencies are reported at their first occurrence, in text order.
+// The template currency pattern, when set, only narrows where the code is looked for
+class CurrencyParser implements Parser {
+    private static final Currency[] codes = new Currency[26 * 26 * 26];
 
     static {
-        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
-        //symbols.setGroupingSeparator(',');
-        symbols.setDecimalSeparator('.');
-        // String pattern = "#,##0.0#";
-        format = new DecimalFormat("###.##", symbols);
-        format.setParseBigDecimal(true);
-    }
-
-    private static BigDecimal format(String s) {
-        try {
-            return (BigDecimal) format.parse(s);
-        } catch (ParseException ignored) {
+        for (Currency currency : Currency.getAvailableCurrencies()) {
+            int code = code(currency.getCurrencyCode(), 0);
+            if (code != -1) codes[code] = currency;
         }
-        return BigDecimal.ZERO;
-    }
-
-    MoneyParser(Function<BigDecimal, Event.Builder> builderFunction) {
-        super(builderFunction);
     }
 
     @Override
-    protected Pattern pattern(Template.Content content) {
-        return content.moneyPattern();
+    public List<Result> parse(Template.Content content, Message message, CharSequence text, int start, int end) {
+        List<Result> results = new ArrayList<>(2);
+        Pattern pattern = content.getCurrencyPattern();
+        if (pattern != null) {
+            Matcher matcher = Matchers.formats.matcher(pattern, text).region(start, end);
+            while (matcher.find()) {
+                scan(text, matcher.start(), matcher.end(), results, true);
+            }
+        } else {
+            scan(text, start, end, results, false);
+        }
+        return ImmutableList.copyOf(results);
     }
 
-    @Override
-    protected BigDecimal format(Template.Content content, String match) {
-        try {
-            return (BigDecimal) content.moneyFormat().parse(match);
-        } catch (ParseException ignored) {
+    private static void scan(CharSequence text, int from, int to, List<Result> results, boolean first) {
+        for (int i = from; i + 3 <= to; i++) {
+            int code = code(text, i);
+            if (code == -1 || codes[code] == null) continue;
+            Currency currency = codes[code];
+            if (!reported(results, currency)) {
+                results.add(new Result(i, new Event.Builder().currency(currency), i + 3));
+            }
+            if (first) return;
         }
-        return BigDecimal.ZERO;
-
     }
-}
 
-class AccountParser implements Parser {
-    private Function<String, Event.Builder> applier;
-
-    AccountParser(Function<String, Event.Builder> applier) {
-        this.applier = applier;
+    private static boolean reported(List<Result> results, Currency currency) {
+        for (Result result : results) {
+            if (result.data().getCurrency() == currency) return true;
+        }
+        return false;
     }
 
-    @Override
-    public List<Result> parse(Template.Content content, Message message, String data) {
-        return Collections.singletonList(new Result("", applier.apply(data), ""));
+    // table index of the three letters at i, -1 if they are not latin letters
+    private static int code(CharSequence text, int i) {
+        int code = 0;
+        for (int k = i; k < i + 3; k++) {
+            int letter = letter(text.charAt(k));
+            if (letter == -1) return -1;
+            code = code * 26 + letter;
+        }
+        return code;
     }
-}
 
-class CurrencyParser implements Parser {
-    @Override
-    public List<Result> parse(Template.Content content, Message message, String data) {
-        ImmutableList.Builder<Result> results = new ImmutableList.Builder<>();
-        String upperCaseData = data.toUpperCase();
-        for (Currency currency : Currency.getAvailableCurrencies()) {
-            int indexOf = upperCaseData.indexOf(currency.getCurrencyCode());
-            if (indexOf != -1) {
-                results.add(new Result(data.substring(0, indexOf),
-                        new Event.Builder().currency(currency),
-                        data.substring(indexOf + currency.getCurrencyCode().length())));
-            }
-        }
-        return results.build();
+    private static int letter(char c) {
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        return -1;
     }
 }
-
@@ -0,0 +1,116 @@
+package com.yrrlsv.fin;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+// Parse results by exact (sender, text), with the template that matched, least recently used evicted first once
+// the estimated size of the entries goes over the bound. Results computed before a clear() are not taken,
+// see generation().
+final class ResultCache {
+
+    private static final int ENTRY_OVERHEAD = 96; // key, map entry and list objects
+    private static final int EVENT_SIZE = 160;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long bytes;
+    private long generation;
+
+    ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    Entry get(Message message) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(new Key(message.sender(), message.text()));
+        }
+        (entry != null ? hits : misses).increment();
+        return entry;
+    }
+
+    // to be read before computing a result to put
+    synchronized long generation() {
+        return generation;
+    }
+
+    // template null when none matched
+    synchronized void put(Message message, List<Event> events, Template template, long generation) {
+        if (generation != this.generation) return;
+        Key key = new Key(message.sender(), message.text());
+        long size = size(key, events);
+        if (size > maxBytes) return;
+        Entry previous = entries.put(key, new Entry(events, template));
+        if (previous != null) bytes -= size(key, previous.events);
+        bytes += size;
+        for (Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator(); bytes > maxBytes; ) {
+            Map.Entry<Key, Entry> entry = eldest.next();
+            bytes -= size(entry.getKey(), entry.getValue().events);
+            eldest.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+        generation++;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private static long size(Key key, List<Event> events) {
+        return ENTRY_OVERHEAD + 2L * key.text.length() + (key.sender != null ? 2L * key.sender.length() : 0)
+                + (long) EVENT_SIZE * events.size();
+    }
+
+    static final class Entry {
+        final List<Event> events;
+        final Template template;
+
+        private Entry(List<Event> events, Template template) {
+            this.events = events;
+            this.template = template;
+        }
+    }
+
+    private static final class Key {
+        private final String sender;
+        private final String text;
+        private final int hash;
+
+        private Key(String sender, String text) {
+            this.sender = sender;
+            this.text = text;
+            this.hash = 31 * Objects.hashCode(sender) + text.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return hash == key.hash && text.equals(key.text) && Objects.equals(sender, key.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.yrrlsv.fin;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Template that matched the last message of the same sender and shape. The shape of a text masks digits as 9,
+// latin letters as A/a, other letters as L/l by case, and collapses runs of each, so messages of one template
+// mostly share it whatever their amounts, dates and names. Forgets everything once full.
+final class ShapeCache {
+
+    private final int capacity;
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ShapeCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    static String shape(String sender, CharSequence text) {
+        StringBuilder shape = new StringBuilder(text.length() / 2 + (sender != null ? sender.length() + 1 : 1));
+        if (sender != null) shape.append(sender);
+        shape.append('\u0000');
+        char last = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = mask(text.charAt(i));
+            if (c == last && (c == '9' || c == 'A' || c == 'a' || c == 'L' || c == 'l')) continue;
+            shape.append(c);
+            last = c;
+        }
+        return shape.toString();
+    }
+
+    private static char mask(char c) {
+        if (c >= '0' && c <= '9') return '9';
+        if (c >= 'A' && c <= 'Z') return 'A';
+        if (c >= 'a' && c <= 'z') return 'a';
+        if (Character.isLetter(c)) return Character.isUpperCase(c) ? 'L' : 'l';
+        if (Character.isDigit(c)) return '9';
+        return c;
+    }
+
+    // remembered template, counted as a hit only once it matched
+    Template get(String shape) {
+        return templates.get(shape);
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void put(String shape, Template template) {
+        if (templates.size() >= capacity) templates.clear();
+        templates.put(shape, template);
+    }
+
+    void clear() {
+        templates.clear();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+}
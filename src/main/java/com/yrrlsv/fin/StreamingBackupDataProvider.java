@@ -0,0 +1,66 @@
+package com.yrrlsv.fin;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// SMS Backup & Restore xml read with StAX: every <sms> is handed out as soon as it is parsed,
+// so memory does not depend on the backup size (unlike AndroidBackupDataProvider)
+public class StreamingBackupDataProvider implements DataProvider, AutoCloseable {
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final InputStream input;
+    private final XMLStreamReader reader;
+    private boolean closed;
+
+    public StreamingBackupDataProvider(String path) {
+        try {
+            this.input = new BufferedInputStream(new FileInputStream(path));
+            this.reader = factory.createXMLStreamReader(input);
+        } catch (XMLStreamException | FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Message nextMessage() {
+        if (closed) return null;
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "sms".equals(reader.getLocalName())) {
+                    String date = reader.getAttributeValue(null, "date");
+                    return new Message(reader.getAttributeValue(null, "body"), date != null ? Long.valueOf(date) : null,
+                            reader.getAttributeValue(null, "address"));
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+        close();
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            reader.close();
+            input.close();
+        } catch (XMLStreamException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
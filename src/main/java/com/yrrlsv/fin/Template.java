@@ -1,9 +1,12 @@
 package com.yrrlsv.fin;
 
+import com.google.common.collect.ImmutableSet;
+
 import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 public class Template {
@@ -11,24 +14,18 @@ public class Template {
     public static final String default_currency_rgx = "[A-Z]{3}";
 
     private final EventType type;
-    private final Pattern pattern;
+    private final String regex;
+    private final int flags;
+    private volatile Pattern pattern; // compiled on first use when loaded from a TemplateCatalog
     private final List<Placeholder> placeholders;
     private final Pattern dateTimePattern;
     private final DateTimeFormatter dateTimeFormatter;
     private final Pattern moneyPattern;
     private final DecimalFormat moneyFormat;
     private final Pattern currencyPattern;
-
-
-    private static DecimalFormat decimalFormat(String moneyFormat) {
-        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
-        symbols.setDecimalSeparator('.');
-        //symbols.setGroupingSeparator(',');
-        // String pattern = "#,##0.0#"; // w/o grouping splitter "###.##"
-        DecimalFormat decimalFormat = new DecimalFormat(moneyFormat, symbols);
-        decimalFormat.setParseBigDecimal(true);
-        return decimalFormat;
-    }
+    private final Set<String> senders; // message addresses the template applies to, empty for any
+    private final Content content;
+    private int hash; // 0 until computed, metrics look templates up by it for every one tried
 
     public Template(EventType type,
                     String pattern,
@@ -39,13 +36,13 @@ public class Template {
                     String moneyFormat,
                     String currencyRegex) {
         this(type,
-                Pattern.compile(pattern),
+                Formats.pattern(Objects.requireNonNull(pattern)),
                 placeholders,
-                Pattern.compile(dateTimeRegex),
-                DateTimeFormatter.ofPattern(dateTimeFormat),
-                Pattern.compile(moneyRegex),
-                decimalFormat(moneyFormat),
-                Pattern.compile(currencyRegex));
+                Formats.pattern(dateTimeRegex),
+                Formats.dateTimeFormatter(dateTimeFormat),
+                Formats.pattern(moneyRegex),
+                Formats.decimalFormat(moneyFormat),
+                Formats.pattern(currencyRegex));
     }
 
 
@@ -57,21 +54,90 @@ public class Template {
                     Pattern moneyPattern,
                     DecimalFormat moneyFormat,
                     Pattern currencyPattern) {
-        this.type = type;
+        this(type, pattern.pattern(), pattern.flags(), placeholders, dateTimePattern, dateTimeFormatter, moneyPattern,
+                moneyFormat, currencyPattern, ImmutableSet.of());
         this.pattern = pattern;
+    }
+
+    Template(EventType type,
+             String regex,
+             int flags,
+             List<Placeholder> placeholders,
+             Pattern dateTimePattern,
+             DateTimeFormatter dateTimeFormatter,
+             Pattern moneyPattern,
+             DecimalFormat moneyFormat,
+             Pattern currencyPattern,
+             Set<String> senders) {
+        this.type = type;
+        this.regex = regex;
+        this.flags = flags;
         this.placeholders = placeholders;
         this.dateTimePattern = dateTimePattern;
         this.dateTimeFormatter = dateTimeFormatter;
         this.moneyPattern = moneyPattern;
         this.moneyFormat = moneyFormat;
         this.currencyPattern = currencyPattern;
+        this.senders = senders;
+
+        Content content = new Content().setType(type)
+                .setDateTimeFormatter(dateTimeFormatter).setMoneyPattern(moneyPattern).setCurrencyPattern(currencyPattern);
+        content.setDateTimePattern(dateTimePattern);
+        content.setMoneyFormat(moneyFormat);
+        this.content = Content.unmodifiable(content);
     }
 
 
+    // copy applying only to messages from the given addresses
+    public Template from(String... senders) {
+        Template template = new Template(type, regex, flags, placeholders, dateTimePattern, dateTimeFormatter,
+                moneyPattern, moneyFormat, currencyPattern, ImmutableSet.copyOf(senders));
+        template.pattern = pattern;
+        return template;
+    }
+
+    public Set<String> senders() {
+        return senders;
+    }
+
     public Pattern pattern() {
+        Pattern pattern = this.pattern;
+        if (pattern == null) {
+            pattern = flags == 0 ? Formats.pattern(regex) : Pattern.compile(regex, flags);
+            this.pattern = pattern;
+        }
         return pattern;
     }
 
+    // source of pattern(), without compiling it
+    public String regex() {
+        return regex;
+    }
+
+    int flags() {
+        return flags;
+    }
+
+    Pattern dateTimePattern() {
+        return dateTimePattern;
+    }
+
+    DateTimeFormatter dateTimeFormatter() {
+        return dateTimeFormatter;
+    }
+
+    Pattern moneyPattern() {
+        return moneyPattern;
+    }
+
+    DecimalFormat moneyFormat() {
+        return moneyFormat;
+    }
+
+    Pattern currencyPattern() {
+        return currencyPattern;
+    }
+
     public EventType type() {
         return type;
     }
@@ -84,16 +150,23 @@ public class Template {
         Template template = (Template) o;
 
         if (type != template.type) return false;
-        if (!pattern.equals(template.pattern)) return false;
+        if (!regex.equals(template.regex) || flags != template.flags) return false;
+        if (!senders.equals(template.senders)) return false;
         return placeholders.equals(template.placeholders);
 
     }
 
     @Override
     public int hashCode() {
-        int result = type.hashCode();
-        result = 31 * result + pattern.hashCode();
-        result = 31 * result + placeholders.hashCode();
+        int result = hash;
+        if (result == 0) {
+            result = type.hashCode();
+            result = 31 * result + regex.hashCode();
+            result = 31 * result + flags;
+            result = 31 * result + placeholders.hashCode();
+            result = 31 * result + senders.hashCode();
+            hash = result;
+        }
         return result;
     }
 
@@ -101,8 +174,9 @@ public class Template {
     public String toString() {
         return "Template{" +
                 "type=" + type +
-                ", pattern=" + pattern +
+                ", pattern=" + regex +
                 ", placeholders=" + placeholders +
+                ", senders=" + senders +
                 '}';
     }
 
@@ -110,9 +184,9 @@ public class Template {
         return placeholders;
     }
 
+    // formats of the template, shared by every parse
     public Content content() {
-        return Content.unmodifiable(new Content().setType(type)
-                .setDateTimeFormatter(null).setMoneyPattern(null).setCurrencyPattern(null));
+        return content;
     }
 
     public static class Content {
@@ -173,8 +247,10 @@ public class Template {
             this.type = content.type;
             this.message = content.message;
             this.locators = content.locators;
+            this.dateTimePattern = content.dateTimePattern;
             this.dateTimeFormatter = content.dateTimeFormatter;
             this.moneyPattern = content.moneyPattern;
+            this.moneyFormat = content.moneyFormat;
             this.currencyPattern = content.currencyPattern;
         }
 
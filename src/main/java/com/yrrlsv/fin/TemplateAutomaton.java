@@ -0,0 +1,769 @@
+package com.yrrlsv.fin;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+// All templates compiled into one NFA program and simulated together (Pike VM), so a message is walked once
+// whatever the template count. Thread priorities follow java.util.regex, captures equal Matcher.find() ones.
+// Patterns using constructs the compiler does not know (anchors, lookarounds, back references, most flags)
+// are left out and have to be matched with their own Pattern, see supports(Template).
+final class TemplateAutomaton {
+
+    private static final int CHAR = 0, ANY = 1, CLASS = 2, SPLIT = 3, JMP = 4, SAVE = 5, MATCH = 6;
+    private static final int MAX_REPEAT = 16;
+
+    private final List<Template> templates;
+    private final Map<Template, Integer> ids = new IdentityHashMap<>();
+    private final int[] start; // -1 if template is not supported
+
+    private final int[] op;
+    private final int[] x;
+    private final int[] y;
+    private final int[] owner;
+    private final CharClass[] classes;
+    private final int[] slots;
+    private final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(Scratch::new);
+
+    TemplateAutomaton(Collection<Template> templates) {
+        this.templates = ImmutableList.copyOf(templates);
+        this.start = new int[this.templates.size()];
+        this.slots = new int[this.templates.size()];
+        Program program = new Program();
+        for (int t = 0; t < this.templates.size(); t++) {
+            Template template = this.templates.get(t);
+            ids.put(template, t);
+            start[t] = -1;
+            Node root;
+            try {
+                root = new RegexCompiler(template.pattern()).compile();
+            } catch (UnsupportedOperationException unsupported) {
+                continue;
+            }
+            start[t] = program.size;
+            slots[t] = 2 * (template.pattern().matcher("").groupCount() + 1);
+            program.emit(SAVE, 0, 0, t);
+            root.emit(program, t);
+            program.emit(SAVE, 1, 0, t);
+            program.emit(MATCH, 0, 0, t);
+        }
+        op = Arrays.copyOf(program.op, program.size);
+        x = Arrays.copyOf(program.x, program.size);
+        y = Arrays.copyOf(program.y, program.size);
+        owner = Arrays.copyOf(program.owner, program.size);
+        classes = program.classes.toArray(new CharClass[program.classes.size()]);
+    }
+
+    // as read from a TemplateCatalog
+    private TemplateAutomaton(List<Template> templates, int[] start, int[] slots, int[] op, int[] x, int[] y,
+                              int[] owner, CharClass[] classes) {
+        this.templates = ImmutableList.copyOf(templates);
+        for (int t = 0; t < this.templates.size(); t++) ids.put(this.templates.get(t), t);
+        this.start = start;
+        this.slots = slots;
+        this.op = op;
+        this.x = x;
+        this.y = y;
+        this.owner = owner;
+        this.classes = classes;
+    }
+
+    // the program, templates are written by the catalog
+    void write(DataOutput out) throws IOException {
+        for (int[] column : new int[][]{start, slots, op, x, y, owner}) TemplateCatalog.writeInts(out, column);
+        out.writeInt(classes.length);
+        for (CharClass charClass : classes) {
+            out.writeBoolean(charClass.negated);
+            out.writeInt(charClass.from.length);
+            for (int i = 0; i < charClass.from.length; i++) {
+                out.writeChar(charClass.from[i]);
+                out.writeChar(charClass.to[i]);
+            }
+        }
+    }
+
+    static TemplateAutomaton read(DataInput in, List<Template> templates) throws IOException {
+        int[] start = TemplateCatalog.readInts(in);
+        int[] slots = TemplateCatalog.readInts(in);
+        int[] op = TemplateCatalog.readInts(in);
+        int[] x = TemplateCatalog.readInts(in);
+        int[] y = TemplateCatalog.readInts(in);
+        int[] owner = TemplateCatalog.readInts(in);
+        CharClass[] classes = new CharClass[in.readInt()];
+        for (int c = 0; c < classes.length; c++) {
+            boolean negated = in.readBoolean();
+            List<char[]> ranges = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) ranges.add(new char[]{in.readChar(), in.readChar()});
+            classes[c] = new CharClass(ranges, negated);
+        }
+        if (start.length != templates.size()) throw new IOException("program of another template list");
+        return new TemplateAutomaton(templates, start, slots, op, x, y, owner, classes);
+    }
+
+    List<Template> templates() {
+        return templates;
+    }
+
+    boolean supports(Template template) {
+        Integer id = ids.get(template);
+        return id != null && start[id] != -1;
+    }
+
+    // one pass over the text for every supported template among the candidates, result is indexed like templates()
+    MatchResult[] match(CharSequence text, Collection<Template> candidates) {
+        return match(text, candidates, scratch());
+    }
+
+    // the same with the given scratch space, which has to be this automaton's and used by one thread at a time
+    MatchResult[] match(CharSequence text, Collection<Template> candidates, Scratch scratch) {
+        MatchResult[] results = new MatchResult[templates.size()];
+        int[] active = scratch.active;
+        int count = 0;
+        for (Template candidate : candidates) {
+            Integer id = ids.get(candidate);
+            if (id != null && start[id] != -1) active[count++] = id;
+        }
+        if (count == 0) return results;
+
+        scratch.reset();
+        Threads current = scratch.current;
+        Threads next = scratch.next;
+        int[][] matched = scratch.matched;
+        boolean[] cut = scratch.cut;
+
+        for (int i = 0; i <= text.length(); i++) {
+            // a new attempt starting here has the lowest priority, and none is needed once a template matched
+            for (int a = 0; a < count; a++) {
+                int t = active[a];
+                if (matched[t] != null || current.visited[start[t]] == current.generation) continue;
+                int[] caps = scratch.allocate();
+                Arrays.fill(caps, 0, slots[t], -1); // unmatched group, like Matcher
+                add(scratch, current, start[t], i, caps);
+                scratch.release(caps);
+            }
+            if (current.size == 0) break;
+
+            int c = i < text.length() ? text.charAt(i) : -1;
+            Arrays.fill(cut, false);
+            next.clear();
+            for (int k = 0; k < current.size; k++) {
+                int pc = current.pc[k];
+                int[] caps = current.caps[k];
+                int t = owner[pc];
+                if (!cut[t]) {
+                    switch (op[pc]) {
+                        case MATCH:
+                            if (matched[t] != null) scratch.release(matched[t]);
+                            matched[t] = caps;
+                            scratch.retain(caps);
+                            cut[t] = true; // lower priority threads of the same template lose
+                            break;
+                        case CHAR:
+                            if (c == x[pc]) add(scratch, next, pc + 1, i + 1, caps);
+                            break;
+                        case ANY:
+                            if (c != -1 && (x[pc] == 1 || !CharClass.lineTerminator((char) c, y[pc] == 1)))
+                                add(scratch, next, pc + 1, i + 1, caps);
+                            break;
+                        case CLASS:
+                            if (c != -1 && classes[x[pc]].matches((char) c)) add(scratch, next, pc + 1, i + 1, caps);
+                            break;
+                    }
+                }
+                scratch.release(caps);
+            }
+            current.size = 0;
+            Threads swap = current;
+            current = next;
+            next = swap;
+        }
+
+        for (int a = 0; a < count; a++) {
+            int t = active[a];
+            if (matched[t] != null) results[t] = new Result(text, Arrays.copyOf(matched[t], slots[t]));
+        }
+        return results;
+    }
+
+    MatchResult result(MatchResult[] results, Template template) {
+        Integer id = ids.get(template);
+        return id != null ? results[id] : null;
+    }
+
+    // the calling thread's
+    Scratch scratch() {
+        return scratches.get();
+    }
+
+    // caps is borrowed, a thread put on the list retains it, a SAVE works on a pooled copy
+    private void add(Scratch scratch, Threads threads, int pc, int position, int[] caps) {
+        if (threads.visited[pc] == threads.generation) return;
+        threads.visited[pc] = threads.generation;
+        switch (op[pc]) {
+            case JMP:
+                add(scratch, threads, x[pc], position, caps);
+                break;
+            case SPLIT:
+                add(scratch, threads, x[pc], position, caps);
+                add(scratch, threads, y[pc], position, caps);
+                break;
+            case SAVE:
+                int[] copy = scratch.allocate();
+                System.arraycopy(caps, 0, copy, 0, scratch.width);
+                copy[x[pc]] = position;
+                add(scratch, threads, pc + 1, position, copy);
+                scratch.release(copy);
+                break;
+            default:
+                scratch.retain(caps);
+                threads.pc[threads.size] = pc;
+                threads.caps[threads.size++] = caps;
+        }
+    }
+
+    // Per thread working memory of match(): thread lists, and capture arrays pooled and reference counted
+    // (the count in the last element), so a message leaves no garbage but its results.
+    final class Scratch {
+        private final Threads current = new Threads(op.length);
+        private final Threads next = new Threads(op.length);
+        private final int[][] matched = new int[templates.size()][];
+        private final boolean[] cut = new boolean[templates.size()];
+        private final int[] active = new int[templates.size()];
+        private final int width = Arrays.stream(slots).max().orElse(0);
+        private int[][] pool = new int[16][];
+        private int free; // pool[0, free) are free
+        private int allocated;
+
+        private Scratch() {
+        }
+
+        private int[] allocate() {
+            int[] caps;
+            if (free > 0) {
+                caps = pool[--free];
+            } else {
+                caps = new int[width + 1];
+                if (++allocated > pool.length) pool = Arrays.copyOf(pool, pool.length * 2);
+            }
+            caps[width] = 1;
+            return caps;
+        }
+
+        private void retain(int[] caps) {
+            caps[width]++;
+        }
+
+        private void release(int[] caps) {
+            if (--caps[width] == 0) pool[free++] = caps;
+        }
+
+        // what the last match kept, matched captures and threads alive at its end, goes back to the pool
+        private void reset() {
+            for (int t = 0; t < matched.length; t++) {
+                if (matched[t] != null) release(matched[t]);
+                matched[t] = null;
+            }
+            for (Threads threads : new Threads[]{current, next}) {
+                for (int k = 0; k < threads.size; k++) release(threads.caps[k]);
+                threads.clear();
+            }
+        }
+    }
+
+    private static final class Threads {
+        private final int[] pc;
+        private final int[][] caps;
+        private final int[] visited;
+        private int generation = 1;
+        private int size;
+
+        private Threads(int capacity) {
+            pc = new int[capacity];
+            caps = new int[capacity][];
+            visited = new int[capacity];
+        }
+
+        private void clear() {
+            Arrays.fill(caps, 0, size, null);
+            size = 0;
+            generation++;
+        }
+    }
+
+    private static final class Result implements MatchResult {
+        private final CharSequence text;
+        private final int[] caps;
+
+        private Result(CharSequence text, int[] caps) {
+            this.text = text;
+            this.caps = caps;
+        }
+
+        @Override
+        public int start() {
+            return caps[0];
+        }
+
+        @Override
+        public int start(int group) {
+            return caps[2 * group];
+        }
+
+        @Override
+        public int end() {
+            return caps[1];
+        }
+
+        @Override
+        public int end(int group) {
+            return caps[2 * group + 1];
+        }
+
+        @Override
+        public String group() {
+            return group(0);
+        }
+
+        @Override
+        public String group(int group) {
+            int from = start(group);
+            return from == -1 ? null : text.subSequence(from, end(group)).toString();
+        }
+
+        @Override
+        public int groupCount() {
+            return caps.length / 2 - 1;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    private static final class Program {
+        private int[] op = new int[64];
+        private int[] x = new int[64];
+        private int[] y = new int[64];
+        private int[] owner = new int[64];
+        private final List<CharClass> classes = new ArrayList<>();
+        private int size;
+
+        private int emit(int code, int a, int b, int template) {
+            if (size == op.length) {
+                op = Arrays.copyOf(op, size * 2);
+                x = Arrays.copyOf(x, size * 2);
+                y = Arrays.copyOf(y, size * 2);
+                owner = Arrays.copyOf(owner, size * 2);
+            }
+            op[size] = code;
+            x[size] = a;
+            y[size] = b;
+            owner[size] = template;
+            return size++;
+        }
+
+        private int emitClass(CharClass charClass, int template) {
+            classes.add(charClass);
+            return emit(CLASS, classes.size() - 1, 0, template);
+        }
+    }
+
+    private interface Node {
+        void emit(Program program, int template);
+    }
+
+    private static final class Literal implements Node {
+        private final char c;
+
+        private Literal(char c) {
+            this.c = c;
+        }
+
+        @Override
+        public void emit(Program program, int template) {
+            program.emit(CHAR, c, 0, template);
+        }
+    }
+
+    private static final class Any implements Node {
+        private final boolean dotAll;
+        private final boolean unixLines;
+
+        private Any(boolean dotAll, boolean unixLines) {
+            this.dotAll = dotAll;
+            this.unixLines = unixLines;
+        }
+
+        @Override
+        public void emit(Program program, int template) {
+            program.emit(ANY, dotAll ? 1 : 0, unixLines ? 1 : 0, template);
+        }
+    }
+
+    private static final class ClassNode implements Node {
+        private final CharClass charClass;
+
+        private ClassNode(CharClass charClass) {
+            this.charClass = charClass;
+        }
+
+        @Override
+        public void emit(Program program, int template) {
+            program.emitClass(charClass, template);
+        }
+    }
+
+    private static final class Group implements Node {
+        private final int index; // -1 for non capturing
+        private final Node body;
+
+        private Group(int index, Node body) {
+            this.index = index;
+            this.body = body;
+        }
+
+        @Override
+        public void emit(Program program, int template) {
+            if (index != -1) program.emit(SAVE, 2 * index, 0, template);
+            body.emit(program, template);
+            if (index != -1) program.emit(SAVE, 2 * index + 1, 0, template);
+        }
+    }
+
+    private static final class Sequence implements Node {
+        private final List<Node> nodes;
+
+        private Sequence(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public void emit(Program program, int template) {
+            for (Node node : nodes) node.emit(program, template);
+        }
+    }
+
+    private static final class Alternation implements Node {
+        private final List<Node> branches;
+
+        private Alternation(List<Node> branches) {
+            this.branches = branches;
+        }
+
+        @Override
+        public void emit(Program program, int template) {
+            List<Integer> exits = new ArrayList<>();
+            for (int b = 0; b < branches.size(); b++) {
+                if (b == branches.size() - 1) {
+                    branches.get(b).emit(program, template);
+                    break;
+                }
+                int split = program.emit(SPLIT, 0, 0, template);
+                program.x[split] = program.size;
+                branches.get(b).emit(program, template);
+                exits.add(program.emit(JMP, 0, 0, template));
+                program.y[split] = program.size;
+            }
+            for (int exit : exits) program.x[exit] = program.size;
+        }
+    }
+
+    private static final class Repeat implements Node {
+        private final Node body;
+        private final int min;
+        private final int max; // -1 unbounded
+        private final boolean greedy;
+
+        private Repeat(Node body, int min, int max, boolean greedy) {
+            this.body = body;
+            this.min = min;
+            this.max = max;
+            this.greedy = greedy;
+        }
+
+        @Override
+        public void emit(Program program, int template) {
+            for (int i = 0; i < min; i++) body.emit(program, template);
+            if (max == -1) {
+                // L: split body, out; body; jmp L
+                int split = program.emit(SPLIT, 0, 0, template);
+                body.emit(program, template);
+                program.emit(JMP, split, 0, template);
+                branch(program, split, split + 1, program.size);
+            } else {
+                List<Integer> splits = new ArrayList<>();
+                for (int i = min; i < max; i++) {
+                    int split = program.emit(SPLIT, 0, 0, template);
+                    splits.add(split);
+                    body.emit(program, template);
+                }
+                for (int split : splits) branch(program, split, split + 1, program.size);
+            }
+        }
+
+        private void branch(Program program, int split, int into, int out) {
+            program.x[split] = greedy ? into : out;
+            program.y[split] = greedy ? out : into;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+
+    static final class CharClass {
+        private final char[] from;
+        private final char[] to;
+        private final boolean negated;
+
+        private CharClass(List<char[]> ranges, boolean negated) {
+            this.from = new char[ranges.size()];
+            this.to = new char[ranges.size()];
+            for (int i = 0; i < ranges.size(); i++) {
+                from[i] = ranges.get(i)[0];
+                to[i] = ranges.get(i)[1];
+            }
+            this.negated = negated;
+        }
+
+        boolean matches(char c) {
+            for (int i = 0; i < from.length; i++) {
+                if (c >= from[i] && c <= to[i]) return !negated;
+            }
+            return negated;
+        }
+
+        static boolean lineTerminator(char c, boolean unixLines) {
+            if (unixLines) return c == '\n';
+            return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+
+        // predefined classes the way java.util.regex defines them without UNICODE_CHARACTER_CLASS
+        static List<char[]> predefined(char name) {
+            switch (Character.toLowerCase(name)) {
+                case 'd':
+                    return ranges('0', '9');
+                case 's':
+                    return ranges(' ', ' ', '\t', '\n', '\u000B', '\u000B', '\f', '\r');
+                case 'w':
+                    return ranges('a', 'z', 'A', 'Z', '_', '_', '0', '9');
+                default:
+                    return null;
+            }
+        }
+
+        private static List<char[]> ranges(char... bounds) {
+            List<char[]> ranges = new ArrayList<>();
+            for (int i = 0; i < bounds.length; i += 2) ranges.add(new char[]{bounds[i], bounds[i + 1]});
+            return ranges;
+        }
+    }
+
+    private static final class RegexCompiler {
+        private final String regex;
+        private final boolean dotAll;
+        private final boolean unixLines;
+        private int i;
+        private int groups;
+
+        private RegexCompiler(Pattern pattern) {
+            int flags = pattern.flags();
+            if ((flags & ~(Pattern.DOTALL | Pattern.UNIX_LINES | Pattern.MULTILINE | Pattern.LITERAL)) != 0)
+                throw new UnsupportedOperationException("flags " + flags);
+            this.regex = (flags & Pattern.LITERAL) != 0 ? Pattern.quote(pattern.pattern()) : pattern.pattern();
+            this.dotAll = (flags & Pattern.DOTALL) != 0;
+            this.unixLines = (flags & Pattern.UNIX_LINES) != 0;
+        }
+
+        private Node compile() {
+            Node root = alternation();
+            if (i != regex.length()) throw new UnsupportedOperationException(regex);
+            return root;
+        }
+
+        private Node alternation() {
+            List<Node> branches = new ArrayList<>();
+            branches.add(sequence());
+            while (i < regex.length() && regex.charAt(i) == '|') {
+                i++;
+                branches.add(sequence());
+            }
+            return branches.size() == 1 ? branches.get(0) : new Alternation(branches);
+        }
+
+        private Node sequence() {
+            List<Node> nodes = new ArrayList<>();
+            while (i < regex.length() && regex.charAt(i) != '|' && regex.charAt(i) != ')') {
+                if (regex.startsWith("\\Q", i)) {
+                    int end = regex.indexOf("\\E", i + 2);
+                    if (end == -1) end = regex.length();
+                    for (int k = i + 2; k < end; k++) nodes.add(new Literal(regex.charAt(k)));
+                    i = Math.min(end + 2, regex.length());
+                    if (i < regex.length() && "*+?{".indexOf(regex.charAt(i)) != -1 && !nodes.isEmpty())
+                        nodes.add(quantified(nodes.remove(nodes.size() - 1)));
+                    continue;
+                }
+                nodes.add(quantified(atom()));
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Sequence(nodes);
+        }
+
+        private Node quantified(Node atom) {
+            if (i >= regex.length()) return atom;
+            int min, max;
+            switch (regex.charAt(i)) {
+                case '*':
+                    min = 0;
+                    max = -1;
+                    i++;
+                    break;
+                case '+':
+                    min = 1;
+                    max = -1;
+                    i++;
+                    break;
+                case '?':
+                    min = 0;
+                    max = 1;
+                    i++;
+                    break;
+                case '{': {
+                    int end = regex.indexOf('}', i);
+                    if (end == -1) throw new UnsupportedOperationException(regex);
+                    String[] bounds = regex.substring(i + 1, end).split(",", -1);
+                    try {
+                        min = Integer.parseInt(bounds[0].trim());
+                        max = bounds.length == 1 ? min : bounds[1].trim().isEmpty() ? -1 : Integer.parseInt(bounds[1].trim());
+                    } catch (NumberFormatException e) {
+                        throw new UnsupportedOperationException(regex);
+                    }
+                    if (min > MAX_REPEAT || max > MAX_REPEAT) throw new UnsupportedOperationException(regex);
+                    i = end + 1;
+                    break;
+                }
+                default:
+                    return atom;
+            }
+            boolean greedy = true;
+            if (i < regex.length() && regex.charAt(i) == '?') {
+                greedy = false;
+                i++;
+            } else if (i < regex.length() && regex.charAt(i) == '+') {
+                throw new UnsupportedOperationException("possessive " + regex);
+            }
+            return new Repeat(atom, min, max, greedy);
+        }
+
+        private Node atom() {
+            char c = regex.charAt(i++);
+            switch (c) {
+                case '.':
+                    return new Any(dotAll, unixLines);
+                case '(':
+                    return group();
+                case '[':
+                    return new ClassNode(charClass());
+                case '\\':
+                    return escape();
+                case '^':
+                case '$':
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw new UnsupportedOperationException(regex);
+                default:
+                    return new Literal(c);
+            }
+        }
+
+        private Node group() {
+            int index = -1;
+            if (regex.startsWith("?:", i)) i += 2;
+            else if (regex.startsWith("?<", i) && i + 2 < regex.length() && Character.isLetter(regex.charAt(i + 2))) {
+                i = regex.indexOf('>', i) + 1;
+                index = ++groups;
+            } else if (i < regex.length() && regex.charAt(i) == '?') {
+                throw new UnsupportedOperationException("special group " + regex);
+            } else index = ++groups;
+            Node body = alternation();
+            if (i >= regex.length() || regex.charAt(i) != ')') throw new UnsupportedOperationException(regex);
+            i++;
+            return new Group(index, body);
+        }
+
+        private Node escape() {
+            if (i >= regex.length()) throw new UnsupportedOperationException(regex);
+            char e = regex.charAt(i++);
+            List<char[]> predefined = CharClass.predefined(e);
+            if (predefined != null) return new ClassNode(new CharClass(predefined, Character.isUpperCase(e)));
+            return new Literal(escapedLiteral(e));
+        }
+
+        private char escapedLiteral(char e) {
+            switch (e) {
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 'f':
+                    return '\f';
+                case 'a':
+                    return '\u0007';
+                case 'e':
+                    return '\u001B';
+                default:
+                    if (Character.isLetterOrDigit(e)) throw new UnsupportedOperationException("\\" + e);
+                    return e;
+            }
+        }
+
+        private CharClass charClass() {
+            boolean negated = false;
+            if (i < regex.length() && regex.charAt(i) == '^') {
+                negated = true;
+                i++;
+            }
+            List<char[]> ranges = new ArrayList<>();
+            boolean first = true;
+            while (true) {
+                if (i >= regex.length()) throw new UnsupportedOperationException(regex);
+                char c = regex.charAt(i++);
+                if (c == ']' && !first) break;
+                first = false;
+                if (c == '[' || (c == '&' && i < regex.length() && regex.charAt(i) == '&'))
+                    throw new UnsupportedOperationException("nested class " + regex);
+                if (c == '\\') {
+                    if (i >= regex.length()) throw new UnsupportedOperationException(regex);
+                    char e = regex.charAt(i++);
+                    List<char[]> predefined = CharClass.predefined(e);
+                    if (predefined != null) {
+                        if (Character.isUpperCase(e)) throw new UnsupportedOperationException(regex);
+                        ranges.addAll(predefined);
+                        continue;
+                    }
+                    c = escapedLiteral(e);
+                }
+                char to = c;
+                if (i + 1 < regex.length() && regex.charAt(i) == '-' && regex.charAt(i + 1) != ']') {
+                    i++;
+                    to = regex.charAt(i++);
+                    if (to == '\\') {
+                        if (i >= regex.length()) throw new UnsupportedOperationException(regex);
+                        to = escapedLiteral(regex.charAt(i++));
+                    } else if (to == '[') throw new UnsupportedOperationException(regex);
+                }
+                ranges.add(new char[]{c, to});
+            }
+            return new CharClass(ranges, negated);
+        }
+    }
+}
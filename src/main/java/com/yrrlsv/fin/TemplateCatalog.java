@@ -0,0 +1,174 @@
+package com.yrrlsv.fin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// Templates saved in one binary file together with what CoreService compiles from them: the literal index
+// and the automaton program. A service started from a catalog neither extracts literals nor compiles regexes;
+// a template pattern is compiled the first time the template is tried with its own Pattern.
+// Formats have to come from source strings (the String constructor of Template) to be written.
+public final class TemplateCatalog {
+
+    private static final int MAGIC = 0x544d504c; // TMPL
+    private static final int VERSION = 1;
+
+    private final List<Template> templates;
+    private final TemplateIndex index;
+    private final TemplateAutomaton automaton;
+
+    private TemplateCatalog(List<Template> templates, TemplateIndex index, TemplateAutomaton automaton) {
+        this.templates = templates;
+        this.index = index;
+        this.automaton = automaton;
+    }
+
+    public static void write(Collection<Template> templates, Path path) {
+        List<Template> list = ImmutableList.copyOf(templates);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(list.size());
+            for (Template template : list) write(out, template);
+            new TemplateIndex(list).write(out);
+            new TemplateAutomaton(list).write(out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static TemplateCatalog read(Path path) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) throw new IOException("not a template catalog: " + path);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("template catalog version " + version + ": " + path);
+            List<Template> templates = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) templates.add(readTemplate(in));
+            templates = ImmutableList.copyOf(templates);
+            return new TemplateCatalog(templates, TemplateIndex.read(in, templates), TemplateAutomaton.read(in, templates));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // in insertion order
+    public List<Template> templates() {
+        return templates;
+    }
+
+    TemplateIndex index() {
+        return index;
+    }
+
+    TemplateAutomaton automaton() {
+        return automaton;
+    }
+
+    private static void write(DataOutput out, Template template) throws IOException {
+        out.writeByte(template.type().ordinal());
+        out.writeUTF(template.regex());
+        out.writeInt(template.flags());
+        out.writeInt(template.senders().size());
+        for (String sender : template.senders()) out.writeUTF(sender);
+        out.writeInt(template.placeholders().size());
+        for (Placeholder placeholder : template.placeholders()) {
+            out.writeInt(placeholder.fields().size());
+            for (Field field : placeholder.fields()) out.writeByte(field.ordinal());
+        }
+        writePattern(out, template.dateTimePattern());
+        writeSource(out, template.dateTimeFormatter(), template);
+        writePattern(out, template.moneyPattern());
+        writeSource(out, template.moneyFormat(), template);
+        writePattern(out, template.currencyPattern());
+    }
+
+    private static Template readTemplate(DataInput in) throws IOException {
+        EventType type = EventType.values()[in.readByte()];
+        String regex = in.readUTF();
+        int flags = in.readInt();
+        String[] senders = new String[in.readInt()];
+        for (int i = 0; i < senders.length; i++) senders[i] = in.readUTF();
+        List<Placeholder> placeholders = new ArrayList<>();
+        for (int p = in.readInt(); p > 0; p--) {
+            Field[] fields = new Field[in.readInt()];
+            for (int i = 0; i < fields.length; i++) fields[i] = Field.fields[in.readByte()];
+            placeholders.add(Placeholder.of(fields));
+        }
+        Pattern dateTimePattern = readPattern(in);
+        DateTimeFormatter dateTimeFormatter = Formats.dateTimeFormatter(readString(in));
+        Pattern moneyPattern = readPattern(in);
+        DecimalFormat moneyFormat = Formats.decimalFormat(readString(in));
+        Pattern currencyPattern = readPattern(in);
+        return new Template(type, regex, flags, placeholders, dateTimePattern, dateTimeFormatter, moneyPattern,
+                moneyFormat, currencyPattern, ImmutableSet.copyOf(senders));
+    }
+
+    private static void writePattern(DataOutput out, Pattern pattern) throws IOException {
+        writeString(out, pattern != null ? pattern.pattern() : null);
+        if (pattern != null) out.writeInt(pattern.flags());
+    }
+
+    private static Pattern readPattern(DataInput in) throws IOException {
+        String regex = readString(in);
+        if (regex == null) return null;
+        int flags = in.readInt();
+        return flags == 0 ? Formats.pattern(regex) : Pattern.compile(regex, flags);
+    }
+
+    private static void writeSource(DataOutput out, Object format, Template template) throws IOException {
+        String source = Formats.source(format);
+        if (format != null && source == null)
+            throw new IllegalArgumentException("format not created from a source string: " + template);
+        writeString(out, source);
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeInts(DataOutput out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) out.writeInt(value);
+    }
+
+    static int[] readInts(DataInput in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+        return values;
+    }
+
+    // rows may be null
+    static void writeTable(DataOutput out, int[][] rows) throws IOException {
+        out.writeInt(rows.length);
+        for (int[] row : rows) {
+            out.writeBoolean(row != null);
+            if (row != null) writeInts(out, row);
+        }
+    }
+
+    static int[][] readTable(DataInput in) throws IOException {
+        int[][] rows = new int[in.readInt()][];
+        for (int i = 0; i < rows.length; i++) rows[i] = in.readBoolean() ? readInts(in) : null;
+        return rows;
+    }
+}
@@ -0,0 +1,424 @@
+package com.yrrlsv.fin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+// Prefilter for template selection: literal fragments every template pattern requires go into one Aho-Corasick
+// automaton, the message is scanned once and only templates whose literals all occur are tried with the regex.
+// Candidates come in insertion order, or in the order given by ordered(). Messages from a sender some templates
+// declare are routed to those and the generic templates only, messages from other senders to all templates.
+// Immutable, rebuilt on template set change, so it is read without locking.
+final class TemplateIndex {
+
+    static final int MIN_LITERAL_LENGTH = 2;
+
+    private static final ImmutableMap<Character, Character> escapes = ImmutableMap.<Character, Character>builder()
+            .put('t', '\t').put('n', '\n').put('r', '\r').put('f', '\f').put('a', '\u0007').put('e', '\u001B')
+            .build();
+
+    private final List<Template> templates;
+    private final int[][] required; // literal ids per template, null if template cannot be indexed
+    private final int[] order; // template indexes in candidates order
+    private final Map<String, int[]> routes; // order filtered per declared sender
+
+    // automaton
+    private final char[][] keys;
+    private final int[][] next;
+    private final int[] fail;
+    private final int[][] output;
+    private final int literalsCount;
+
+    TemplateIndex(Collection<Template> templates) {
+        this.templates = ImmutableList.copyOf(templates);
+        this.required = new int[this.templates.size()][];
+        this.order = IntStream.range(0, required.length).toArray();
+        this.routes = routes(this.templates, order);
+
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        for (int t = 0; t < required.length; t++) {
+            List<String> literals = literals(this.templates.get(t).pattern());
+            if (literals == null) continue;
+            required[t] = literals.stream().mapToInt(l -> ids.computeIfAbsent(l, k -> ids.size())).distinct().toArray();
+        }
+        this.literalsCount = ids.size();
+
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<List<Integer>> outputs = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        outputs.add(new ArrayList<>());
+        for (Map.Entry<String, Integer> literal : ids.entrySet()) {
+            int state = 0;
+            for (char c : literal.getKey().toCharArray()) {
+                Integer to = trie.get(state).get(c);
+                if (to == null) {
+                    to = trie.size();
+                    trie.get(state).put(c, to);
+                    trie.add(new TreeMap<>());
+                    outputs.add(new ArrayList<>());
+                }
+                state = to;
+            }
+            outputs.get(state).add(literal.getValue());
+        }
+
+        int size = trie.size();
+        keys = new char[size][];
+        next = new int[size][];
+        fail = new int[size];
+        output = new int[size][];
+        for (int s = 0; s < size; s++) {
+            TreeMap<Character, Integer> edges = trie.get(s);
+            keys[s] = new char[edges.size()];
+            next[s] = new int[edges.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+                keys[s][i] = edge.getKey();
+                next[s][i++] = edge.getValue();
+            }
+        }
+
+        // breadth first, so fail target is complete before its dependants
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : next[0]) queue.add(child);
+        output[0] = new int[0];
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            List<Integer> own = outputs.get(s);
+            int[] inherited = output[fail[s]];
+            output[s] = new int[own.size() + inherited.length];
+            for (int i = 0; i < own.size(); i++) output[s][i] = own.get(i);
+            System.arraycopy(inherited, 0, output[s], own.size(), inherited.length);
+
+            for (int i = 0; i < keys[s].length; i++) {
+                int child = next[s][i];
+                fail[child] = s == 0 ? 0 : step(fail[s], keys[s][i]);
+                queue.add(child);
+            }
+        }
+    }
+
+    private TemplateIndex(TemplateIndex index, int[] order) {
+        this.templates = index.templates;
+        this.required = index.required;
+        this.order = order;
+        this.routes = routes(templates, order);
+        this.keys = index.keys;
+        this.next = index.next;
+        this.fail = index.fail;
+        this.output = index.output;
+        this.literalsCount = index.literalsCount;
+    }
+
+    // as read from a TemplateCatalog
+    private TemplateIndex(List<Template> templates, int[][] required, char[][] keys, int[][] next, int[] fail,
+                          int[][] output, int literalsCount) {
+        this.templates = ImmutableList.copyOf(templates);
+        this.required = required;
+        this.order = IntStream.range(0, required.length).toArray();
+        this.routes = routes(this.templates, order);
+        this.keys = keys;
+        this.next = next;
+        this.fail = fail;
+        this.output = output;
+        this.literalsCount = literalsCount;
+    }
+
+    // the tables, templates are written by the catalog; read back in insertion order
+    void write(DataOutput out) throws IOException {
+        out.writeInt(literalsCount);
+        TemplateCatalog.writeTable(out, required);
+        out.writeInt(keys.length);
+        for (char[] edges : keys) {
+            out.writeInt(edges.length);
+            for (char c : edges) out.writeChar(c);
+        }
+        TemplateCatalog.writeTable(out, next);
+        TemplateCatalog.writeInts(out, fail);
+        TemplateCatalog.writeTable(out, output);
+    }
+
+    static TemplateIndex read(DataInput in, List<Template> templates) throws IOException {
+        int literalsCount = in.readInt();
+        int[][] required = TemplateCatalog.readTable(in);
+        char[][] keys = new char[in.readInt()][];
+        for (int s = 0; s < keys.length; s++) {
+            keys[s] = new char[in.readInt()];
+            for (int i = 0; i < keys[s].length; i++) keys[s][i] = in.readChar();
+        }
+        int[][] next = TemplateCatalog.readTable(in);
+        int[] fail = TemplateCatalog.readInts(in);
+        int[][] output = TemplateCatalog.readTable(in);
+        if (required.length != templates.size()) throw new IOException("index of another template list");
+        return new TemplateIndex(templates, required, keys, next, fail, output, literalsCount);
+    }
+
+    // same index with candidates ordered by weight, heaviest first, ties in insertion order; this if order is same
+    TemplateIndex ordered(ToLongFunction<Template> weight) {
+        long[] weights = templates.stream().mapToLong(weight).toArray();
+        int[] order = IntStream.range(0, required.length).boxed()
+                .sorted((a, b) -> weights[a] != weights[b] ? Long.compare(weights[b], weights[a]) : Integer.compare(a, b))
+                .mapToInt(Integer::intValue).toArray();
+        return Arrays.equals(order, this.order) ? this : new TemplateIndex(this, order);
+    }
+
+    // in insertion order
+    List<Template> templates() {
+        return templates;
+    }
+
+    private static Map<String, int[]> routes(List<Template> templates, int[] order) {
+        Map<String, int[]> routes = new HashMap<>();
+        for (Template template : templates) {
+            for (String sender : template.senders()) {
+                routes.computeIfAbsent(sender, s -> Arrays.stream(order)
+                        .filter(t -> templates.get(t).senders().isEmpty() || templates.get(t).senders().contains(s))
+                        .toArray());
+            }
+        }
+        return ImmutableMap.copyOf(routes);
+    }
+
+    List<Template> candidates(CharSequence text) {
+        return candidates(null, text);
+    }
+
+    List<Template> candidates(String sender, CharSequence text) {
+        return candidates(sender, text, new Scratch());
+    }
+
+    // the list returned is the scratch's, valid until it is used again
+    List<Template> candidates(String sender, CharSequence text, Scratch scratch) {
+        int[] route = sender != null ? routes.get(sender) : null;
+        if (route == null) route = order;
+
+        BitSet found = scratch.found;
+        found.clear();
+        if (literalsCount > 0) {
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                state = step(state, text.charAt(i));
+                for (int literal : output[state]) found.set(literal);
+            }
+        }
+
+        List<Template> candidates = scratch.candidates;
+        candidates.clear();
+        for (int t : route) {
+            if (matches(required[t], found)) candidates.add(templates.get(t));
+        }
+        return candidates;
+    }
+
+    // what candidates() fills per message, to reuse over a batch; fits any index
+    static final class Scratch {
+        private final BitSet found = new BitSet();
+        private final List<Template> candidates = new ArrayList<>();
+    }
+
+    private static boolean matches(int[] literals, BitSet found) {
+        if (literals == null) return true;
+        for (int literal : literals) {
+            if (!found.get(literal)) return false;
+        }
+        return true;
+    }
+
+    private int step(int state, char c) {
+        while (true) {
+            int i = Arrays.binarySearch(keys[state], c);
+            if (i >= 0) return next[state][i];
+            if (state == 0) return 0;
+            state = fail[state];
+        }
+    }
+
+    // literal fragments every match of the pattern has to contain, or null when the pattern uses constructs
+    // (alternation, inline flags, case insensitivity) that make such a list unreliable
+    static List<String> literals(Pattern pattern) {
+        if ((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) return null;
+        if ((pattern.flags() & Pattern.LITERAL) != 0) return filter(ImmutableList.of(pattern.pattern()));
+
+        String regex = pattern.pattern();
+        ArrayDeque<List<String>> groups = new ArrayDeque<>();
+        ArrayDeque<Boolean> optional = new ArrayDeque<>();
+        List<String> committed = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            switch (c) {
+                case '\\': {
+                    if (i >= regex.length()) return null;
+                    char e = regex.charAt(i++);
+                    if (e == 'Q') {
+                        int end = regex.indexOf("\\E", i);
+                        if (end == -1) end = regex.length();
+                        current.append(regex, i, end);
+                        i = Math.min(end + 2, regex.length());
+                    } else if (e == 'x' || e == 'u' || e == 'c' || e == 'k' || Character.isDigit(e)) {
+                        return null; // code points and back references, not worth decoding here
+                    } else {
+                        char literal = escaped(e);
+                        if (literal != 0) current.append(literal);
+                        else {
+                            flush(current, committed);
+                            if (e == 'p' || e == 'P') {
+                                i = i < regex.length() && regex.charAt(i) == '{' ? skipBraces(regex, i) : i + 1;
+                            }
+                            i = quantifier(regex, i);
+                        }
+                    }
+                    break;
+                }
+                case '|':
+                    return null;
+                case '(': {
+                    flush(current, committed);
+                    boolean lookaround = false;
+                    if (i < regex.length() && regex.charAt(i) == '?') {
+                        if (i + 1 >= regex.length()) return null;
+                        char kind = regex.charAt(i + 1);
+                        if (kind == ':' || kind == '>') i += 2;
+                        else if (kind == '=' || kind == '!') {
+                            lookaround = true;
+                            i += 2;
+                        } else if (kind == '<' && i + 2 < regex.length()
+                                && (regex.charAt(i + 2) == '=' || regex.charAt(i + 2) == '!')) {
+                            lookaround = true;
+                            i += 3;
+                        } else if (kind == '<') {
+                            int end = regex.indexOf('>', i);
+                            if (end == -1) return null;
+                            i = end + 1;
+                        } else return null; // inline flags
+                    }
+                    groups.push(committed);
+                    optional.push(lookaround);
+                    committed = new ArrayList<>();
+                    break;
+                }
+                case ')': {
+                    if (groups.isEmpty()) return null;
+                    flush(current, committed);
+                    List<String> inner = committed;
+                    committed = groups.pop();
+                    boolean drop = optional.pop();
+                    int quantified = quantifier(regex, i);
+                    if (quantified != i) {
+                        drop |= optionalQuantifier(regex, i);
+                        i = quantified;
+                    }
+                    if (!drop) committed.addAll(inner);
+                    break;
+                }
+                case '[':
+                    flush(current, committed);
+                    i = skipClass(regex, i);
+                    if (i < 0) return null;
+                    i = quantifier(regex, i);
+                    break;
+                case '.':
+                case '^':
+                case '$':
+                    flush(current, committed);
+                    i = quantifier(regex, i);
+                    break;
+                case '*':
+                case '?':
+                case '+':
+                case '{': {
+                    // quantifier right after a literal char: the char stays required only for '+' and {n>0}
+                    i--;
+                    boolean drop = optionalQuantifier(regex, i);
+                    if (drop && current.length() > 0) current.setLength(current.length() - 1);
+                    flush(current, committed);
+                    i = quantifier(regex, i);
+                    break;
+                }
+                default:
+                    current.append(c);
+            }
+        }
+        if (!groups.isEmpty()) return null;
+        flush(current, committed);
+        return filter(committed);
+    }
+
+    private static List<String> filter(List<String> literals) {
+        List<String> result = new ArrayList<>(literals.size());
+        for (String literal : literals) {
+            if (literal.length() >= MIN_LITERAL_LENGTH) result.add(literal);
+        }
+        return result;
+    }
+
+    private static void flush(StringBuilder current, List<String> committed) {
+        if (current.length() > 0) {
+            committed.add(current.toString());
+            current.setLength(0);
+        }
+    }
+
+    private static char escaped(char e) {
+        if (!Character.isLetterOrDigit(e)) return e;
+        Character literal = escapes.get(e);
+        return literal != null ? literal : 0;
+    }
+
+    private static boolean optionalQuantifier(String regex, int i) {
+        if (i >= regex.length()) return false;
+        char q = regex.charAt(i);
+        if (q == '*' || q == '?') return true;
+        return q == '{' && i + 1 < regex.length() && regex.charAt(i + 1) == '0';
+    }
+
+    // index right after the quantifier (with its lazy/possessive suffix) starting at i, or i if there is none
+    private static int quantifier(String regex, int i) {
+        if (i >= regex.length()) return i;
+        char q = regex.charAt(i);
+        if (q == '*' || q == '?' || q == '+') i++;
+        else if (q == '{') i = skipBraces(regex, i);
+        else return i;
+        if (i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) i++;
+        return i;
+    }
+
+    private static int skipBraces(String regex, int i) {
+        if (i >= regex.length() || regex.charAt(i) != '{') return i;
+        int end = regex.indexOf('}', i);
+        return end == -1 ? regex.length() : end + 1;
+    }
+
+    // i points right after the opening '[', returns index after the closing ']' or -1
+    private static int skipClass(String regex, int i) {
+        int depth = 1;
+        if (i < regex.length() && regex.charAt(i) == '^') i++;
+        if (i < regex.length() && regex.charAt(i) == ']') i++;
+        while (i < regex.length()) {
+            char c = regex.charAt(i++);
+            if (c == '\\') i++;
+            else if (c == '[') depth++;
+            else if (c == ']' && --depth == 0) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,60 @@
+package com.yrrlsv.fin;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Template compiled once, when it is added to CoreService: the parser of every placeholder field and, for every
+// range of placeholder fields, the field the range is split at first (the one of highest priority).
+// Immutable but for the hit counters, shared by all parsing threads.
+final class TemplatePlan {
+
+    final Template template;
+    final Template.Content content;
+    final Step[] steps;
+    final LongAdder hits = new LongAdder(); // messages matched
+    final LongAdder misses = new LongAdder(); // messages tried but not matched
+
+    TemplatePlan(Template template, Map<Field, Parser> parsers) {
+        this.template = template;
+        this.content = template.content();
+        List<Placeholder> placeholders = template.placeholders();
+        this.steps = new Step[placeholders.size()];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = new Step(placeholders.get(i), parsers);
+        }
+    }
+
+    static final class Step {
+        final Placeholder placeholder;
+        final Parser[] parsers;
+        private final int[][] aims;
+
+        private Step(Placeholder placeholder, Map<Field, Parser> parsers) {
+            this.placeholder = placeholder;
+            List<Field> fields = placeholder.fields();
+            int size = fields.size();
+            this.parsers = new Parser[size];
+            for (int i = 0; i < size; i++) {
+                this.parsers[i] = parsers.get(fields.get(i));
+            }
+            this.aims = new int[size][size + 1];
+            for (int from = 0; from < size; from++) {
+                int aim = from;
+                for (int to = from + 1; to <= size; to++) {
+                    if (Parser.priority.compare(fields.get(to - 1), fields.get(aim)) < 0) aim = to - 1;
+                    aims[from][to] = aim;
+                }
+            }
+        }
+
+        int size() {
+            return parsers.length;
+        }
+
+        // field the non empty range [from, to) is split at
+        int aim(int from, int to) {
+            return aims[from][to];
+        }
+    }
+}
@@ -238,6 +238,15 @@ public class DumpReaderTest {
             Arrays.<Placeholder>asList(Placeholder.of(none), Placeholder.of(none), Placeholder.of(none), Placeholder.of(none),
                     Placeholder.of(none)
             ), otpDateTimeRegex, otpDateTimeFormatter, otpMoneyRegex, otpMoneyFormat, otpCurrencyRegex);
+    private static final Template otp_credit_line = new Template(EventType.promo,
+            "Shanovnii kliente, kredytna liniia do vashogo rakhunka (.+) - vidkryta v rozmiri (.+). OTP Bank.",
+            Arrays.<Placeholder>asList(Placeholder.of(none), Placeholder.of(none)
+            ), otpDateTimeRegex, otpDateTimeFormatter, otpMoneyRegex, otpMoneyFormat, otpCurrencyRegex);
+    // advertising, recognized by the hotline number
+    private static final Template otp_ad = new Template(EventType.promo,
+            "(.+)0 ?800 ?(.+)",
+            Arrays.<Placeholder>asList(Placeholder.of(none), Placeholder.of(none)
+            ), otpDateTimeRegex, otpDateTimeFormatter, otpMoneyRegex, otpMoneyFormat, otpCurrencyRegex);
 
     public static final TemplateProvider FAKE_TEMPLATE_PROVIDER = new TemplateProvider() {
         @Override
@@ -254,9 +263,8 @@ public class DumpReaderTest {
 
     private EventBus bus = new EventBus();
 
-    @Test
-    public void otpOnly_20160111231728() {
-        new DumpReader(FAKE_TEMPLATE_PROVIDER,
+    private DumpReader otpReader(EventBus bus) {
+        return new DumpReader(FAKE_TEMPLATE_PROVIDER,
                 new AndroidBackupDataProvider(getClass().getResource("otpOnly-20160111231728.xml").getPath()),
                 bus,
                 Arrays.asList(
@@ -265,8 +273,22 @@ public class DumpReaderTest {
                         otp_charge_currency, otp_charge4, otp_charge3, otp_charge2, otp_charge,
                         otp_withdrawal4, otp_withdrawal3, otp_withdrawal2, otp_withdrawal, otp_cashier_withdrawal,
                         otp_deposit, otp_deposit2, otp_deposit3, otp_deposit_withdraw,
-                        otp_credit_reminder, otp_access, otp_access2, otp_access_money //otp_access_withrow_depo,
-                )).maxErrors(5).execute();
+                        otp_credit_reminder, otp_access, otp_access2, otp_access_money, //otp_access_withrow_depo,
+                        otp_credit_line, otp_ad
+                ));
+    }
+
+    @Test
+    public void parallelKeepsOrder() {
+        EventBus parallel = new EventBus();
+        otpReader(bus).execute();
+        otpReader(parallel).parallelism(4).execute();
+        assertThat(parallel.events(), is(bus.events()));
+    }
+
+    @Test
+    public void otpOnly_20160111231728() {
+        otpReader(bus).maxErrors(5).execute();
 
         Map<EventType, List<Event>> types =
                 bus.events().stream().collect(Collectors.groupingBy(Event::type));
@@ -3,13 +3,18 @@ package com.yrrlsv.fin;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
+import org.apache.commons.lang3.NotImplementedException;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Currency;
@@ -17,6 +22,9 @@ import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.yrrlsv.fin.Field.account;
 import static com.yrrlsv.fin.Field.amount;
@@ -26,6 +34,7 @@ import static com.yrrlsv.fin.Field.date;
 import static com.yrrlsv.fin.Field.none;
 import static com.yrrlsv.fin.Field.shop;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class CoreServiceTest {
@@ -229,4 +238,306 @@ public class CoreServiceTest {
     }
 
 
+    @Test
+    public void templateLiterals() {
+        assertThat(TemplateIndex.literals(Pattern.compile("OTPdirekt:(.+): Splata za tovar/poslugu. " +
+                        "Kartka (.+). Suma: (.+) \\((.+)\\).")),
+                is(Arrays.asList("OTPdirekt:", ": Splata za tovar/poslugu", " Kartka ", " Suma: ", " (")));
+        assertThat(TemplateIndex.literals(Pattern.compile("ab(cd)?ef\\d+ghi?jk")), is(Arrays.asList("ab", "ef", "gh", "jk")));
+        assertThat(TemplateIndex.literals(Pattern.compile("Suma: (.+)|Zalyshok: (.+)")), is(nullValue()));
+        assertThat(TemplateIndex.literals(Pattern.compile("Suma", Pattern.LITERAL)), is(Collections.singletonList("Suma")));
+        assertThat(TemplateIndex.literals(Pattern.compile("Suma", Pattern.LITERAL | Pattern.CASE_INSENSITIVE)),
+                is(nullValue()));
+    }
+
+    @Test
+    public void prefilteredTemplates() {
+        Template access = new Template(EventType.promo,
+                Pattern.compile("OTP Smart: (.+)\r\nVhid do systemy.\r\nKod avtoryzatsii: (.+).\r\nDiysnyi do (.+)"),
+                Arrays.asList(Placeholder.of(none), Placeholder.of(none), Placeholder.of(none)),
+                null, null, null, null, null);
+        Template reminder = new Template(EventType.promo,
+                Pattern.compile("Uvaga! Za period (.+) za rakhunkom (.+) zaborgovanist skladae (.+)."),
+                Arrays.asList(Placeholder.of(none), Placeholder.of(none), Placeholder.of(none)),
+                null, null, null, null, null);
+        Message message = new Message("OTP Smart: 12.01.16\r\nVhid do systemy.\r\nKod avtoryzatsii: 1234.\r\n" +
+                "Diysnyi do 12:30");
+
+        TemplateIndex index = new TemplateIndex(Arrays.asList(reminder, access));
+        assertThat(index.candidates(message.text()), is(Collections.singletonList(access)));
+
+        CoreService service = new CoreService(new LinkedHashSet<>(Collections.singleton(reminder)));
+        assertThat(service.parse(message).isEmpty(), is(true));
+        service.addTemplate(access);
+        assertThat(service.parse(message).get(0).type(), is(EventType.promo));
+    }
+
+    @Test
+    public void automatonCapturesLikeRegex() {
+        List<Template> templates = Arrays.asList(
+                new Template(EventType.charge, Pattern.compile("OTPdirekt:(.+): Splata za tovar/poslugu. " +
+                        "Kartka (.+). Suma: (.+) \\((.+)\\). Misce: (.+). Zalyshok: (.+)."),
+                        Collections.emptyList(), null, null, null, null, null),
+                new Template(EventType.charge, Pattern.compile("Suma: (\\d+)[.,](\\d{2})\\s?([A-Z]{3}|\\?{3})"),
+                        Collections.emptyList(), null, null, null, null, null),
+                new Template(EventType.charge, Pattern.compile("(a|ab)(c|bcd)(d*)"),
+                        Collections.emptyList(), null, null, null, null, null),
+                new Template(EventType.charge, Pattern.compile("^Kartka (.+?)\\b"),
+                        Collections.emptyList(), null, null, null, null, null));
+        List<String> texts = Arrays.asList("OTPdirekt:05.01.15 09:28: Splata za tovar/poslugu. Kartka *8310. " +
+                        "Suma: -334,00RUB (-88,62UAH). Misce: CAFE KROSHKA KARTOSHKA HIMKI. Zalyshok: 1.546,91UAH.",
+                "abcd", "Kartka *8310. Suma: 12.50 UAH");
+
+        TemplateAutomaton automaton = new TemplateAutomaton(templates);
+        assertThat(automaton.supports(templates.get(3)), is(false));
+        for (String text : texts) {
+            MatchResult[] results = automaton.match(text, templates);
+            for (Template template : templates.subList(0, 3)) {
+                Matcher expected = template.pattern().matcher(text);
+                MatchResult actual = automaton.result(results, template);
+                assertThat(actual != null, is(expected.find()));
+                for (int g = 0; actual != null && g <= expected.groupCount(); g++) {
+                    assertThat(actual.group(g), is(expected.group(g)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sharedFormats() {
+        Template charge = new Template(EventType.charge, "Data: (.+) Suma: (.+)",
+                Arrays.asList(Placeholder.of(date), Placeholder.of(amount)), "\\d\\d\\.\\d\\d\\.\\d\\d \\d\\d:\\d\\d",
+                "dd.MM.yy HH:mm", null, "###.##", null);
+        Template replenishment = new Template(EventType.replenishment, "Data: (.+) Popovnennya: (.+)",
+                Arrays.asList(Placeholder.of(date), Placeholder.of(amount)), "\\d\\d\\.\\d\\d\\.\\d\\d \\d\\d:\\d\\d",
+                "dd.MM.yy HH:mm", null, "###.##", null);
+        assertThat(charge.dateTimePattern() == replenishment.dateTimePattern(), is(true));
+        assertThat(charge.dateTimeFormatter() == replenishment.dateTimeFormatter(), is(true));
+        assertThat(charge.moneyFormat() == replenishment.moneyFormat(), is(true));
+        assertThat(charge.moneyPattern(), nullValue());
+        assertThat(Formats.source(charge.dateTimeFormatter()), is("dd.MM.yy HH:mm"));
+        assertThat(Formats.source(DateTimeFormatter.ofPattern("dd.MM.yy HH:mm")), nullValue()); // not interned
+        assertThat(charge.pattern() == Formats.pattern("Data: (.+) Suma: (.+)"), is(true));
+    }
+
+    @Test
+    public void reusedMatchers() throws InterruptedException {
+        Pattern suma = Formats.pattern("Suma: (.+)");
+        Matcher first = Matchers.templates.matcher(suma, "Suma: 1");
+        Matcher second = Matchers.templates.matcher(suma, "Suma: 2");
+        assertThat(first == second, is(true)); // reset onto the new text
+        assertThat(second.matches(), is(true));
+        assertThat(second.group(1), is("2"));
+        assertThat(Matchers.templates.matcher(Formats.pattern("Data: (.+)"), "Data: 1") == first, is(false));
+        assertThat(Matchers.formats.matcher(suma, "Suma: 3") == first, is(false));
+
+        Matcher[] other = new Matcher[1];
+        Thread thread = new Thread(() -> other[0] = Matchers.templates.matcher(suma, "Suma: 4"));
+        thread.start();
+        thread.join();
+        assertThat(other[0] == first, is(false));
+        assertThat(other[0].pattern() == suma, is(true));
+    }
+
+    @Test
+    public void memoizedSplits() {
+        Template template = new Template(EventType.charge, Pattern.compile("Suma: (.+)"),
+                Collections.singletonList(Placeholder.of(amount, balance, balance)), null, null, null, null, null);
+        CoreService service = new CoreService(Collections.singleton(template));
+        try {
+            service.parse(new Message("Suma: 1 2 3 4"));
+            Assert.fail();
+        } catch (NotImplementedException ambiguous) {
+        }
+        // whole text, 3 suffixes for (balance, balance), 2 distinct suffixes for the last balance; 7 without memo
+        assertThat(service.subproblems(), is(6L));
+    }
+
+    @Test
+    public void templateIdentity() {
+        List<Placeholder> placeholders = Collections.singletonList(Placeholder.of(amount, currency));
+        Template lazy = new Template(EventType.charge, "Suma: (.+)", 0, placeholders, null, null, null, null, null,
+                ImmutableSet.of());
+        Template compiled = new Template(EventType.charge, Pattern.compile("Suma: (.+)"), placeholders,
+                null, null, null, null, null);
+        Template insensitive = new Template(EventType.charge, "Suma: (.+)", Pattern.CASE_INSENSITIVE, placeholders,
+                null, null, null, null, null, ImmutableSet.of());
+        assertThat(lazy, is(compiled));
+        assertThat(lazy.hashCode(), is(compiled.hashCode()));
+        assertThat(lazy.equals(insensitive), is(false));
+        assertThat(lazy.hashCode() == insensitive.hashCode(), is(false));
+        assertThat(lazy.equals(lazy.from("OTP Bank")), is(false));
+
+        assertThat(lazy.pattern() == Formats.pattern("Suma: (.+)"), is(true)); // compiled on first use, interned
+        assertThat(insensitive.pattern().flags(), is(Pattern.CASE_INSENSITIVE));
+        assertThat(lazy.content() == lazy.content(), is(true)); // one Content per template, for its plan
+    }
+
+    @Test
+    public void adaptiveOrder() throws IOException {
+        Template first = new Template(EventType.charge, Pattern.compile("a (.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null);
+        Template frequent = new Template(EventType.replenishment, Pattern.compile("b (.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null);
+        Message both = new Message("a b 1");
+
+        CoreService service = new CoreService(new LinkedHashSet<>(Arrays.asList(first, frequent))).reorderEvery(2);
+        assertThat(service.parse(both).get(0).type(), is(EventType.charge));
+        service.parse(new Message("b 2"));
+        service.parse(new Message("b 3"));
+        service.parse(new Message("b 4"));
+        assertThat(service.parse(both).get(0).type(), is(EventType.replenishment));
+
+        File statistics = File.createTempFile("statistics", ".properties");
+        statistics.deleteOnExit();
+        service.saveStatistics(statistics.getPath());
+        CoreService restarted = new CoreService(new LinkedHashSet<>(Arrays.asList(first, frequent)));
+        assertThat(restarted.parse(both).get(0).type(), is(EventType.charge));
+        restarted.loadStatistics(statistics.getPath()).reorderEvery(1000);
+        assertThat(restarted.parse(both).get(0).type(), is(EventType.replenishment));
+    }
+
+    @Test
+    public void senderRouting() {
+        Template otp = new Template(EventType.charge, Pattern.compile("Suma: (.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null).from("OTP Bank", "OTPBank");
+        Template delta = new Template(EventType.replenishment, Pattern.compile("Suma: (.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null).from("Deltabank");
+        Template any = new Template(EventType.promo, Pattern.compile("Suma: (.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null);
+        TemplateIndex index = new TemplateIndex(Arrays.asList(otp, delta, any));
+
+        assertThat(index.candidates("OTPBank", "Suma: 1"), is(Arrays.asList(otp, any)));
+        assertThat(index.candidates("Deltabank", "Suma: 1"), is(Arrays.asList(delta, any)));
+        assertThat(index.candidates("4116", "Suma: 1"), is(Arrays.asList(otp, delta, any)));
+        assertThat(index.candidates(null, "Suma: 1"), is(Arrays.asList(otp, delta, any)));
+
+        CoreService service = new CoreService(new LinkedHashSet<>(Arrays.asList(otp, delta, any)));
+        assertThat(service.parse(new Message("Suma: 1", null, "Deltabank")).get(0).type(), is(EventType.replenishment));
+        assertThat(service.parse(new Message("Suma: 1", null, "4116")).get(0).type(), is(EventType.charge));
+    }
+
+    @Test
+    public void resultCache() {
+        Template promo = new Template(EventType.promo, Pattern.compile("Aktsiya (.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null);
+        Template dated = new Template(EventType.charge, Pattern.compile("Data: (.+)"),
+                Collections.singletonList(Placeholder.of(date)), null, null, null, null, null);
+        Metrics metrics = new Metrics();
+        CoreService service = new CoreService(new LinkedHashSet<>(Arrays.asList(promo, dated))).cache(1024)
+                .metrics(metrics);
+
+        List<Event> first = service.parse(new Message("Aktsiya 1", null, "OTP Bank"));
+        assertThat(service.parse(new Message("Aktsiya 1", null, "OTP Bank")) == first, is(true));
+        assertThat(metrics.getTemplateMatches().values().iterator().next(), is(2L)); // the hit counts as a match
+        service.parse(new Message("Aktsiya 1", null, "Deltabank")); // other sender, other entry
+        service.parse(new Message("Data: 15/01 12:30", 1452816000000L, "OTP Bank"));
+        service.parse(new Message("Data: 15/01 12:30", 1452816000000L, "OTP Bank")); // dates are not kept
+        assertThat(service.cacheHits(), is(1L));
+        assertThat(service.cacheMisses(), is(4L));
+
+        for (int i = 0; i < 100; i++) service.parse(new Message("Aktsiya " + i));
+        assertThat(service.cacheBytes() <= 1024, is(true));
+
+        service.parse(new Message("Aktsiya 99"));
+        assertThat(service.cacheHits(), is(2L));
+        service.addTemplate(new Template(EventType.promo, Pattern.compile("Aktsiya 9(.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null));
+        service.parse(new Message("Aktsiya 99"));
+        assertThat(service.cacheHits(), is(2L));
+    }
+
+    @Test
+    public void shapeCache() {
+        assertThat(ShapeCache.shape("OTP Bank", "Suma: 2.500,00UAH, Kartka *8310"),
+                is(ShapeCache.shape("OTP Bank", "Suma: 7.100,50USD, Karta *1234")));
+        assertThat(ShapeCache.shape("OTP Bank", "Suma: 2.500,00UAH").equals(ShapeCache.shape("Deltabank", "Suma: 2.500,00UAH")),
+                is(false));
+
+        Template generic = new Template(EventType.promo, Pattern.compile("Suma: (.+)"),
+                Collections.singletonList(Placeholder.of(none)), null, null, null, null, null);
+        Template charge = new Template(EventType.charge, Pattern.compile("Suma: (.+) \\(spysannya\\)"),
+                Collections.singletonList(Placeholder.of(amount, currency)), null, null, null, null, null);
+        CoreService service = new CoreService(new LinkedHashSet<>(Arrays.asList(charge, generic))).shapes(100);
+
+        assertThat(service.parse(new Message("Suma: 12,00 UAH (spysannya)")).get(0).type(), is(EventType.charge));
+        assertThat(service.parse(new Message("Suma: 3,50 USD (spysannya)")).get(0).amount(), is(new BigDecimal("3.50")));
+        assertThat(service.parse(new Message("Suma: 3,50 USD (popovnennya)")).get(0).type(), is(EventType.promo));
+        assertThat(service.shapeHits(), is(1L));
+        assertThat(service.shapeMisses(), is(2L));
+    }
+
+    @Test
+    public void metrics() {
+        Template charge = new Template(EventType.charge, Pattern.compile("Suma: (.+) \\(spysannya\\)"),
+                Collections.singletonList(Placeholder.of(amount, currency)), null, null, null, null, null);
+        Metrics metrics = new Metrics();
+        CoreService service = new CoreService(Collections.singleton(charge)).metrics(metrics);
+
+        service.parse(new Message("Suma: 12,00 UAH (spysannya)"));
+        service.parse(new Message("Suma: 3,50 USD (popovnennya)"));
+        assertThat(metrics.getMessages(), is(2L));
+        assertThat(metrics.template(charge).count(), is(1L)); // the other one has no "spysannya" to be tried
+        assertThat(metrics.getTemplateMatches().values().iterator().next(), is(1L));
+        assertThat(metrics.parser(amount).count() > 0, is(true));
+
+        metrics.setEnabled(false);
+        service.parse(new Message("Suma: 12,00 UAH (spysannya)"));
+        assertThat(metrics.getMessages(), is(2L));
+    }
+
+    @Test
+    public void templateCatalog() throws IOException {
+        Template charge = new Template(EventType.charge, "OTPdirekt:(.+): Splata za tovar/poslugu. Kartka (.+). Suma: (.+)",
+                Arrays.asList(Placeholder.of(date), Placeholder.of(account), Placeholder.of(amount, currency, shop)),
+                null, "dd.MM.yy HH:mm", null, null, null);
+        Template replenishment = new Template(EventType.replenishment, "^Popovnennya (.+)",
+                Collections.singletonList(Placeholder.of(amount, currency)), null, null, null, null, null).from("OTP Bank");
+        File file = File.createTempFile("templates", ".catalog");
+        file.deleteOnExit();
+        TemplateCatalog.write(Arrays.asList(charge, replenishment), file.toPath());
+
+        TemplateCatalog catalog = TemplateCatalog.read(file.toPath());
+        assertThat(catalog.templates(), is(Arrays.asList(charge, replenishment)));
+        CoreService original = new CoreService(new LinkedHashSet<>(Arrays.asList(charge, replenishment)));
+        CoreService loaded = new CoreService(catalog).engine(CoreService.Engine.automaton);
+        for (Message message : Arrays.asList(
+                new Message("OTPdirekt:11.01.16 23:17: Splata za tovar/poslugu. Kartka *8310. Suma: 25,00UAH SILPO"),
+                new Message("Popovnennya 100,00 UAH", null, "OTP Bank"),
+                new Message("Popovnennya 100,00 UAH", null, "Deltabank"))) {
+            assertThat(loaded.parse(message), is(original.parse(message)));
+        }
+        assertThat(loaded.parse(new Message("Popovnennya 100,00 UAH", null, "OTP Bank")).get(0).amount(),
+                is(new BigDecimal("100.00")));
+        assertThat(loaded.parse(new Message("OTPdirekt:11.01.16 23:17: Splata za tovar/poslugu. Kartka *8310. "
+                + "Suma: 25,00UAH SILPO")).size(), is(1));
+
+        Template unsourced = new Template(EventType.charge, Pattern.compile("Data: (.+)"),
+                Collections.singletonList(Placeholder.of(date)), null, DateTimeFormatter.ofPattern("dd.MM.yy HH:mm"),
+                null, null, null);
+        try {
+            TemplateCatalog.write(Collections.singletonList(unsourced), file.toPath());
+            Assert.fail();
+        } catch (IllegalArgumentException notFromFormats) {
+        }
+    }
+
+    @Test
+    public void parseBatch() {
+        Template charge = new Template(EventType.charge, Pattern.compile("Suma: (.+) \\(spysannya\\)"),
+                Collections.singletonList(Placeholder.of(amount, currency)), null, null, null, null, null);
+        Template replenishment = new Template(EventType.replenishment, Pattern.compile("Suma: (.+) \\(popovnennya\\)"),
+                Collections.singletonList(Placeholder.of(amount, currency)), null, null, null, null, null);
+        CoreService service = new CoreService(new LinkedHashSet<>(Arrays.asList(charge, replenishment)));
+        List<Message> messages = Arrays.asList(
+                new Message("Suma: 12,00 UAH (spysannya)"),
+                new Message("Suma: 3,50 USD (popovnennya)"),
+                new Message("Suma: 7,10 EUR (spysannya)"),
+                new Message("Zalyshok: 1,00 UAH"));
+        List<List<Event>> expected = new ArrayList<>();
+        for (Message message : messages) expected.add(service.parse(message));
+        assertThat(service.parseBatch(messages), is(expected));
+        assertThat(expected.get(2).get(0).amount(), is(new BigDecimal("7.10")));
+    }
+
 }
@@ -0,0 +1,69 @@
+package com.yrrlsv.fin;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class DataProviderTest {
+
+    private static final String backup = DataProviderTest.class.getResource("/banksOnly-20160111231728.xml").getPath();
+
+    private static List<String> read(DataProvider provider) {
+        List<String> messages = new ArrayList<>();
+        for (Message message = provider.nextMessage(); message != null; message = provider.nextMessage()) {
+            messages.add(message.toString());
+        }
+        return messages;
+    }
+
+    @Test
+    public void streamingSameAsJaxb() {
+        List<String> expected = read(new AndroidBackupDataProvider(backup));
+        List<String> actual = read(new StreamingBackupDataProvider(backup));
+        assertThat(actual.size(), is(expected.size()));
+        assertThat(actual, is(expected));
+        assertThat(expected.get(0).contains("sender='null'"), is(false));
+    }
+
+    @Test
+    public void mappedSameAsJaxb() {
+        List<String> expected = read(new AndroidBackupDataProvider(backup));
+        assertThat(read(new MappedBackupDataProvider(backup)), is(expected));
+        assertThat(read(new MappedBackupDataProvider(backup, 4096)), is(expected)); // records cut by window end
+    }
+
+    @Test
+    public void incremental() throws IOException {
+        Path checkpoint = Files.createTempDirectory("incremental").resolve("checkpoint");
+        IncrementalDataProvider first = new IncrementalDataProvider(new StreamingBackupDataProvider(backup), checkpoint);
+        List<String> all = read(first);
+        first.commit();
+        assertThat(all.size(), is(read(new StreamingBackupDataProvider(backup)).size()));
+
+        IncrementalDataProvider second = new IncrementalDataProvider(new StreamingBackupDataProvider(backup), checkpoint);
+        assertThat(read(second).size(), is(0));
+        assertThat(second.skipped(), is((long) all.size()));
+
+        // a week later backup: everything again plus one message of the same date as the last one
+        DataProvider backup = new StreamingBackupDataProvider(DataProviderTest.backup);
+        long last = 0;
+        List<Message> messages = new ArrayList<>();
+        for (Message message = backup.nextMessage(); message != null; message = backup.nextMessage()) {
+            messages.add(message);
+            last = Math.max(last, message.date());
+        }
+        messages.add(new Message("Suma: 1,00 UAH", last, "OTP Bank"));
+        Iterator<Message> iterator = messages.iterator();
+        assertThat(read(new IncrementalDataProvider(() -> iterator.hasNext() ? iterator.next() : null, checkpoint)),
+                is(Collections.singletonList(messages.get(messages.size() - 1).toString())));
+    }
+}
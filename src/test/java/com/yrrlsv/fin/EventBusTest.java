@@ -0,0 +1,149 @@
+package com.yrrlsv.fin;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class EventBusTest {
+
+    private static Event charge(int amount) {
+        return new Event.Builder().type(EventType.charge).amount(new BigDecimal(amount)).build();
+    }
+
+    private static List<Integer> amounts(List<Event> events) {
+        List<Integer> amounts = new ArrayList<>();
+        for (Event event : events) amounts.add(event.amount().intValue());
+        return amounts;
+    }
+
+    @Test
+    public void typedSubscribers() {
+        List<Event> charges = new ArrayList<>();
+        List<Event> failures = new ArrayList<>();
+        EventBus bus = new EventBus()
+                .subscribe(EventType.charge, charges::addAll)
+                .subscribe(EventType.failed, failures::addAll);
+        bus.fire(charge(1));
+        bus.fire(Event.failed("?"));
+        assertThat(charges.size(), is(1));
+        assertThat(failures.size(), is(1));
+        assertThat(bus.events().size(), is(2));
+    }
+
+    @Test
+    public void spillKeepsOrder() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Event> received = Collections.synchronizedList(new ArrayList<>());
+        EventBus bus = new EventBus(4, EventBus.Backpressure.spill).batch(3)
+                .subscribe(EventType.charge, events -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    received.addAll(events);
+                });
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            bus.fire(charge(i));
+            expected.add(i);
+        }
+        assertThat(bus.pending(), is(100));
+        release.countDown();
+        bus.close();
+        assertThat(bus.pending(), is(0));
+        assertThat(amounts(received), is(expected));
+    }
+
+    @Test
+    public void dropWhenFull() {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Event> received = Collections.synchronizedList(new ArrayList<>());
+        EventBus bus = new EventBus(4, EventBus.Backpressure.drop).batch(1)
+                .subscribe(EventType.charge, events -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    received.addAll(events);
+                });
+        for (int i = 0; i < 100; i++) bus.fire(charge(i));
+        release.countDown();
+        bus.close();
+        assertThat(received.size() + bus.dropped(), is(100L));
+        assertThat(received.size() <= 5, is(true)); // the ring and the one held by the subscriber
+    }
+
+    @Test
+    public void batchesCanBeKept() {
+        List<List<Event>> batches = Collections.synchronizedList(new ArrayList<>());
+        EventBus bus = new EventBus(4, EventBus.Backpressure.block).batch(2).subscribe(EventType.charge, batches::add);
+        for (int i = 0; i < 10; i++) bus.fire(charge(i));
+        bus.close();
+        List<Integer> kept = new ArrayList<>();
+        for (List<Event> batch : batches) kept.addAll(amounts(batch));
+        assertThat(kept, is(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroBatch() {
+        new EventBus(4, EventBus.Backpressure.block).batch(0);
+    }
+
+    @Test
+    public void boundedStore() {
+        EventBus bus = new EventBus().bounded(2000, null);
+        List<Event> fired = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Event event = i % 3 == 0 ? Event.failed("message " + i) : charge(i);
+            bus.fire(event);
+            fired.add(event);
+        }
+        assertThat(bus.events().size(), is(100));
+        assertThat(new ArrayList<>(bus.events()), is(fired));
+        assertThat(bus.events().get(99).data().get(Field.source), is("message 99"));
+        for (int i = 0; i < 100; i += 7) assertThat(bus.events().get(i), is(fired.get(i)));
+        assertThat(bus.events().contains(fired.get(2)), is(true));
+        bus.close();
+        assertThat(bus.events().isEmpty(), is(true));
+    }
+
+    @Test
+    public void columnarStore() throws IOException {
+        Path directory = Files.createTempDirectory("columns");
+        List<Event> fired = new ArrayList<>();
+        for (int run = 0; run < 2; run++) {
+            try (ColumnarEventStore.Writer writer = ColumnarEventStore.writer(directory)) {
+                EventBus bus = new EventBus().subscribe(EnumSet.allOf(EventType.class), writer);
+                Event charge = new Event(EventType.charge, "*8310", "SILPO", Currency.getInstance("UAH"),
+                        LocalDateTime.of(2016, 1, 11, 23, 17), new BigDecimal("2500.00"), new BigDecimal("-12.5"));
+                for (Event event : Arrays.asList(charge, charge(run), Event.failed("?"))) {
+                    bus.fire(event);
+                    fired.add(event);
+                }
+            }
+        }
+        ColumnarEventStore.Reader reader = ColumnarEventStore.reader(directory);
+        assertThat(reader.size(), is(6));
+        List<Event> read = new ArrayList<>();
+        for (int row = 0; row < reader.size(); row++) read.add(reader.event(row));
+        assertThat(read, is(fired));
+        assertThat(reader.payerId(3), is(reader.payerId(0)));
+        assertThat(reader.unscaledAmount(0), is(25000000L));
+    }
+}
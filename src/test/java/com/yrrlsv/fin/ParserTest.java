@@ -0,0 +1,168 @@
+package com.yrrlsv.fin;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ParserTest {
+
+    // grouping styles the scanner implements, as regexes
+    private static final List<Pattern> moneyStyles = Arrays.asList(
+            Pattern.compile("(?<![\\'\\,\\.\\d])[1-9]\\d{0,2}(?:\\.\\d{3})+(?:\\,\\d+)?(?![\\'\\,\\.\\d])"),
+            Pattern.compile("(?<![\\'\\,\\.\\d])[1-9]\\d{0,2}(?:\\,\\d{3})+(?:\\.\\d+)?(?![\\'\\,\\.\\d])"),
+            Pattern.compile("(?<![\\'\\,\\.\\d])[1-9]\\d{0,2}(?:\\'\\d{3})+(?:[\\.\\,]\\d+)?(?![\\'\\,\\.\\d])"),
+            Pattern.compile("(?<![\\'\\,\\.\\d])(?:0|[1-9]\\d*)(?:[\\,\\.]\\d+)?(?![\\'\\,\\.\\d])"));
+
+    @Test
+    public void moneyValues() {
+        assertThat(amount("2.000.500,00"), is(new BigDecimal("2000500.00")));
+        assertThat(amount("34,435,500.09"), is(new BigDecimal("34435500.09")));
+        assertThat(amount("2'000'000,5"), is(new BigDecimal("2000000.5")));
+        assertThat(amount("1000,10"), is(new BigDecimal("1000.10")));
+        assertThat(amount("12,122"), is(new BigDecimal("12122"))); // grouping styles go first
+        assertThat(amount("0.25"), is(new BigDecimal("0.25")));
+        assertThat(amount("-594,00"), is(new BigDecimal("-594.00")));
+        assertThat(amount("123456789012345678901,5"), is(new BigDecimal("123456789012345678901.5")));
+        assertThat(amount("1.2.3"), nullValue());
+        assertThat(amount("007"), nullValue());
+    }
+
+    @Test
+    public void moneyScannerFindsWhatRegexesFind() {
+        String[] texts = {
+                "Suma: 2.500,00UAH (2.500,00UAH)", "Bal: 34,435,500.09 USD", "2'000'000.00 CHF", "x1000,10y",
+                "12,122 12,1223 1.234.5678 01 0,5 10.5.6 3'00 4''000", "card *1234, 15.01 12:30, 7.50EUR",
+                "a9,999,999.999,9 b", "'5' .6. ,7,"
+        };
+        for (String text : texts) {
+            assertThat(text, scanned(text), is(expected(text)));
+        }
+    }
+
+    @Test
+    public void moneyParserWithoutTemplatePattern() {
+        Template.Content content = new Template.Content();
+        List<Parser.Result> results = Parser.create(Field.amount).get()
+                .parse(content, new Message("x"), "Suma: 2.500,00UAH");
+        assertThat(results.size(), is(1));
+        assertThat(results.get(0).start(), is(6));
+        assertThat(results.get(0).data().amount().compareTo(new BigDecimal(2500)), is(0));
+        assertThat(results.get(0).end(), is(14));
+
+        String text = "12 Suma: 3,50 UAH 7";
+        results = Parser.create(Field.amount).get().parse(content, new Message(text), text, 9, 17);
+        assertThat(results.size(), is(1));
+        assertThat(text.substring(results.get(0).start(), results.get(0).end()), is("3,50"));
+
+        content.setMoneyPattern(Pattern.compile("[\\d.]+"));
+        results = Parser.create(Field.amount).get().parse(content, new Message("x"), "Suma: 1.2.3 UAH");
+        assertThat(results.isEmpty(), is(true)); // matched, but no amount
+    }
+
+    @Test
+    public void dateLayouts() {
+        Parser parser = Parser.create(Field.date).get();
+        assertThat(date(parser, "Data: 15.01.16 12:30, karta", null), is(LocalDateTime.of(2016, 1, 15, 12, 30)));
+        assertThat(date(parser, "15/01.2016 12:30", null), is(LocalDateTime.of(2016, 1, 15, 12, 30)));
+        assertThat(date(parser, "OTP Smart: 16:44:29 30/10/2015", null), is(LocalDateTime.of(2015, 10, 30, 16, 44, 29)));
+        assertThat(date(parser, "20151030164429", null), is(LocalDateTime.of(2015, 10, 30, 16, 44, 29)));
+        assertThat(date(parser, "15.13.16 12:30", null), nullValue());
+    }
+
+    @Test
+    public void datePatternBoundsTheFormatter() {
+        Template.Content content = new Template.Content().setDateTimeFormatter(new DateTimeFormatterBuilder()
+                .appendPattern("dd.MM.yyyy[ HH:mm]")
+                .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+                .parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+                .toFormatter());
+        content.setDateTimePattern(Pattern.compile("\\d\\d\\.\\d\\d\\.\\d{4}"));
+        List<Parser.Result> results = Parser.create(Field.date).get()
+                .parse(content, new Message("x"), "Data: 15.01.2016 12:30");
+        assertThat(results.get(0).data().date(), is(LocalDateTime.of(2016, 1, 15, 0, 0)));
+        assertThat(results.get(0).end(), is(16));
+    }
+
+    @Test
+    public void yearFromMessageDate() {
+        ZoneId kyiv = ZoneId.of("Europe/Kiev");
+        Parser parser = Parser.create(Field.date, kyiv).get();
+        long received = LocalDateTime.of(2014, 3, 1, 10, 0).atZone(kyiv).toInstant().toEpochMilli();
+        assertThat(date(parser, "28/02 23:10", received), is(LocalDateTime.of(2014, 2, 28, 23, 10)));
+        assertThat(date(parser, "01/03 10:05", received), is(LocalDateTime.of(2014, 3, 1, 10, 5))); // clock ahead
+        assertThat(date(parser, "03/03 10:00", received), is(LocalDateTime.of(2013, 3, 3, 10, 0)));
+        assertThat(date(parser, "12.31 23:10", received), is(LocalDateTime.of(2013, 12, 31, 23, 10))); // MM.dd
+        assertThat(date(parser, "01/03 10:00", received), is(LocalDateTime.of(2014, 3, 1, 10, 0)));
+        assertThat(date(parser, "29/02 10:00", received), nullValue()); // no 29/02 in 2014 nor 2013
+    }
+
+    @Test
+    public void currencies() {
+        Parser parser = Parser.create(Field.currency).get();
+        List<Parser.Result> results = parser.parse(new Template.Content(), new Message("x"), "12,00 uah (0.5USD) UAH");
+        assertThat(results.stream().map(r -> r.data().getCurrency().getCurrencyCode()).collect(Collectors.toList()),
+                is(Arrays.asList("UAH", "USD")));
+        assertThat(results.get(1).start(), is(14));
+        assertThat(results.get(1).end(), is(17));
+
+        Template.Content content = new Template.Content().setCurrencyPattern(Pattern.compile("\\(.+\\)"));
+        results = parser.parse(content, new Message("x"), "12,00 UAH (0.5USD)");
+        assertThat(results.size(), is(1));
+        assertThat(results.get(0).data().getCurrency().getCurrencyCode(), is("USD"));
+    }
+
+    private static LocalDateTime date(Parser parser, String text, Long received) {
+        List<Parser.Result> results = parser.parse(new Template.Content(), new Message(text, received), text);
+        return results.isEmpty() ? null : results.get(0).data().date();
+    }
+
+    private static BigDecimal amount(String s) {
+        return MoneyScanner.amount(s, 0, s.length());
+    }
+
+    private static List<String> scanned(String text) {
+        List<String> found = new ArrayList<>();
+        for (int i = 0; i < text.length(); i++) {
+            int end = MoneyScanner.end(text, 0, i, text.length());
+            if (end != -1) {
+                found.add(i + ":" + text.substring(i, end));
+                i = end;
+            }
+        }
+        return found;
+    }
+
+    // leftmost match of the first style matching at each position
+    private static List<String> expected(String text) {
+        List<String> found = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            int start = i;
+            List<Matcher> at = moneyStyles.stream()
+                    .map(p -> p.matcher(text))
+                    .filter(m -> m.find(start) && m.start() == start)
+                    .collect(Collectors.toList());
+            if (at.isEmpty()) {
+                i++;
+                continue;
+            }
+            found.add(start + ":" + at.get(0).group());
+            i = at.get(0).end() + 1;
+        }
+        return found;
+    }
+}